@@ -0,0 +1,225 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the download cache under its size and file-count limits
+ *
+ * A background reclaimer checks the cache index periodically and after every new
+ * download. When a limit is exceeded it deletes whole tracks (audio and thumbnail)
+ * in small batches, so a large cleanup never blocks the game or the audio server.
+ * Tracks that are still downloading are never evicted.
+ *
+ * @author PsProfi
+ */
+public class CacheEvictor {
+
+    /**
+     * Which tracks are deleted first
+     */
+    public enum Policy {
+        /** Least recently played */
+        LRU,
+        /** Least often played, ties broken by least recently played */
+        LFU,
+        /**
+         * Recently added or played tracks are kept in a small window, everything else
+         * is evicted by play count that is halved regularly so old popularity fades
+         */
+        W_TINYLFU
+    }
+
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    // Tracks deleted per pass, the next pass follows shortly if the cache is still too large
+    private static final int BATCH_SIZE = 16;
+    private static final long NEXT_BATCH_DELAY_MS = 200;
+    // Share of the limits reserved for the W-TinyLFU window
+    private static final double WINDOW_SHARE = 0.01;
+
+    private static volatile long maxBytes = 0;
+    private static volatile int maxFiles = 0;
+    private static volatile Policy policy = Policy.W_TINYLFU;
+
+    private static ScheduledExecutorService reclaimer;
+    private static final AtomicBoolean passScheduled = new AtomicBoolean(false);
+
+    /**
+     * One cached track: all index entries that share a cache key
+     */
+    private record Track(String key, List<CacheIndex.Entry> files, long size, long lastAccess, long hits) {
+    }
+
+    /**
+     * Sets the limits and starts the reclaimer if any limit is set
+     * @param maxBytes Maximum cache size in bytes (0 = unlimited)
+     * @param maxFiles Maximum number of cached files (0 = unlimited)
+     * @param policy Which tracks are deleted first
+     */
+    public static synchronized void configure(long maxBytes, int maxFiles, Policy policy) {
+        CacheEvictor.maxBytes = Math.max(0, maxBytes);
+        CacheEvictor.maxFiles = Math.max(0, maxFiles);
+        CacheEvictor.policy = policy;
+
+        if (isEnabled() && reclaimer == null) {
+            reclaimer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "etchedytdlp-cache-reclaimer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            reclaimer.scheduleWithFixedDelay(CacheEvictor::requestReclaim, CHECK_INTERVAL_SECONDS,
+                    CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        requestReclaim();
+    }
+
+    public static boolean isEnabled() {
+        return maxBytes > 0 || maxFiles > 0;
+    }
+
+    /**
+     * Schedules a reclaim pass unless one is already pending (called after every new download)
+     */
+    public static void requestReclaim() {
+        requestReclaim(0);
+    }
+
+    private static synchronized void requestReclaim(long delayMs) {
+        if (reclaimer == null || !isEnabled() || !passScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        reclaimer.schedule(CacheEvictor::reclaimPass, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void reclaimPass() {
+        passScheduled.set(false);
+        try {
+            if (reclaim(BATCH_SIZE)) {
+                requestReclaim(NEXT_BATCH_DELAY_MS);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[Etched YT-DLP] Cache reclaim failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes up to maxTracks tracks if the cache is over its limits
+     * @return true if the cache is still over its limits afterwards
+     */
+    static boolean reclaim(int maxTracks) {
+        CacheIndex index = YtDlpDownloader.getCacheIndex();
+        long bytes = index.getTotalBytes();
+        int files = index.size();
+        if (!isOver(bytes, files)) {
+            return false;
+        }
+
+        List<Track> victims = orderVictims(groupTracks(index.getEntries()));
+        int evicted = 0;
+        long freed = 0;
+        for (Track track : victims) {
+            if (evicted >= maxTracks || !isOver(bytes, files)) {
+                break;
+            }
+            for (CacheIndex.Entry entry : track.files()) {
+                long size = YtDlpDownloader.deleteCacheFile(entry.file());
+                bytes -= size;
+                freed += size;
+                files--;
+            }
+            evicted++;
+        }
+
+        if (evicted > 0) {
+            System.out.println("[Etched YT-DLP] Evicted " + evicted + " track(s) from cache (" + policy + ", "
+                    + freed / (1024 * 1024) + " MB freed)");
+        }
+        // Stop if nothing could be evicted, everything left is in use
+        return evicted > 0 && isOver(bytes, files);
+    }
+
+    private static boolean isOver(long bytes, int files) {
+        return (maxBytes > 0 && bytes > maxBytes) || (maxFiles > 0 && files > maxFiles);
+    }
+
+    private static List<Track> groupTracks(List<CacheIndex.Entry> entries) {
+        Map<String, List<CacheIndex.Entry>> byKey = new HashMap<>();
+        for (CacheIndex.Entry entry : entries) {
+            byKey.computeIfAbsent(entry.key(), key -> new ArrayList<>()).add(entry);
+        }
+
+        List<Track> tracks = new ArrayList<>();
+        for (Map.Entry<String, List<CacheIndex.Entry>> group : byKey.entrySet()) {
+            if (DownloadCoalescer.isActive(group.getKey())) {
+                continue;
+            }
+            long size = 0;
+            long lastAccess = 0;
+            long hits = 0;
+            for (CacheIndex.Entry entry : group.getValue()) {
+                size += entry.size();
+                lastAccess = Math.max(lastAccess, entry.lastAccess());
+                hits += entry.hits();
+            }
+            tracks.add(new Track(group.getKey(), group.getValue(), size, lastAccess, hits));
+        }
+        return tracks;
+    }
+
+    /**
+     * Sorts tracks so the first one is evicted first
+     */
+    private static List<Track> orderVictims(List<Track> tracks) {
+        Comparator<Track> byRecency = Comparator.comparingLong(Track::lastAccess);
+        Comparator<Track> byFrequency = Comparator.comparingLong(Track::hits).thenComparing(byRecency);
+
+        switch (policy) {
+            case LRU -> tracks.sort(byRecency);
+            case LFU -> tracks.sort(byFrequency);
+            case W_TINYLFU -> {
+                // Protect the most recently used tracks, they have not had a chance to collect hits yet
+                tracks.sort(byRecency.reversed());
+                long windowBytes = (long) (maxBytes * WINDOW_SHARE);
+                int windowTracks = Math.max(1, (int) (maxFiles * WINDOW_SHARE));
+                int protect = 0;
+                long protectedBytes = 0;
+                while (protect < tracks.size() && (protect < windowTracks
+                        || (maxBytes > 0 && protectedBytes + tracks.get(protect).size() <= windowBytes))) {
+                    protectedBytes += tracks.get(protect).size();
+                    protect++;
+                }
+                List<Track> main = new ArrayList<>(tracks.subList(protect, tracks.size()));
+                main.sort(byFrequency);
+                // The window is only evicted once the main region is empty, oldest first
+                List<Track> window = new ArrayList<>(tracks.subList(0, protect));
+                window.sort(byRecency);
+                main.addAll(window);
+                tracks = main;
+
+                ageIfNeeded(tracks);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Halves all hit counts once they add up to ten times the number of tracks (TinyLFU reset)
+     */
+    private static void ageIfNeeded(List<Track> tracks) {
+        long totalHits = 0;
+        for (Track track : tracks) {
+            totalHits += track.hits();
+        }
+        if (totalHits > 10L * Math.max(1, tracks.size())) {
+            YtDlpDownloader.getCacheIndex().ageHits();
+        }
+    }
+}
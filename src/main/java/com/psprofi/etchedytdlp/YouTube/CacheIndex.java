@@ -0,0 +1,385 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of the files in the download cache
+ *
+ * Every cache query (size, file count, old files, files of a URL) is answered from
+ * memory instead of listing a directory that may hold tens of thousands of tracks.
+ * The index is updated on every write and delete and kept in an append-only log,
+ * read once on first use and compacted when it has collected too many stale lines.
+ * If no log exists yet it is built from a single scan of the cache directory.
+ *
+ * Log format, one change per line, tab separated:
+ * {@code P file key url size duration format created lastAccess checksum hits} adds or replaces a file,
+ * {@code A file lastAccess hits} records an access, {@code D file} removes a file.
+ *
+ * @author PsProfi
+ */
+public class CacheIndex {
+
+    private static final int COMPACT_MIN_LINES = 4096;
+    // Accesses are persisted at most once per interval per file, the in-memory time is always exact
+    private static final long ACCESS_PERSIST_INTERVAL_MS = 60_000;
+
+    /**
+     * One cached file
+     * @param file Path relative to the cache directory, '/' separated (e.g. "ab/cd/abcd....mp3")
+     * @param key Cache key of the URL it belongs to
+     * @param url Source URL, empty if unknown (files found by the initial scan)
+     * @param size Size in bytes
+     * @param durationSeconds Playback length, or -1 if unknown
+     * @param format File extension (mp3, ogg, jpg, ...)
+     * @param createdAt When the file was added (epoch millis)
+     * @param lastAccess When the file was last used (epoch millis)
+     * @param checksum SHA-256 of the content, empty if not computed
+     * @param hits How often the file was used (halved from time to time, see {@link #ageHits})
+     */
+    public record Entry(String file, String key, String url, long size, double durationSeconds, String format,
+                        long createdAt, long lastAccess, String checksum, long hits) {
+
+        Entry withAccess(long time, long hits) {
+            return new Entry(file, key, url, size, durationSeconds, format, createdAt, time, checksum, hits);
+        }
+
+        Entry withLocation(String file, String key) {
+            return new Entry(file, key, url, size, durationSeconds, format, createdAt, lastAccess, checksum, hits);
+        }
+    }
+
+    private final Path logFile;
+    private final Path cacheDir;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Long> persistedAccess = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private volatile boolean loaded = false;
+    private int logLines = 0;
+
+    public CacheIndex(Path logFile, Path cacheDir) {
+        this.logFile = logFile;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Creates the index for a cache directory at its default location (ytdlp_tools/cache_index.log)
+     */
+    public static CacheIndex createDefault(Path cacheDir) {
+        return new CacheIndex(Paths.get("ytdlp_tools", "cache_index.log"), cacheDir);
+    }
+
+    /**
+     * Looks up a cached file
+     * @param file File name relative to the cache directory
+     * @return The entry, or null if the file is not in the cache
+     */
+    public Entry get(String file) {
+        ensureLoaded();
+        return entries.get(file);
+    }
+
+    /**
+     * Gets all files that belong to a cache key (audio in any format, thumbnail)
+     */
+    public List<Entry> getByKey(String key) {
+        ensureLoaded();
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.key().equals(key)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a snapshot of all entries
+     */
+    public List<Entry> getEntries() {
+        ensureLoaded();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Adds a file or replaces its entry
+     */
+    public void put(Entry entry) {
+        ensureLoaded();
+        Entry previous = entries.put(entry.file(), entry);
+        totalBytes.addAndGet(entry.size() - (previous != null ? previous.size() : 0));
+        persistedAccess.put(entry.file(), entry.lastAccess());
+        append(toLine(entry));
+    }
+
+    /**
+     * Records that a file was used
+     */
+    public void touch(String file) {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        Entry updated = entries.computeIfPresent(file, (name, entry) -> entry.withAccess(now, entry.hits() + 1));
+        if (updated == null) {
+            return;
+        }
+        Long persisted = persistedAccess.get(file);
+        if (persisted == null || now - persisted >= ACCESS_PERSIST_INTERVAL_MS) {
+            persistedAccess.put(file, now);
+            append("A\t" + file + "\t" + now + "\t" + updated.hits());
+        }
+    }
+
+    /**
+     * Halves every hit count so old popularity fades and recent use counts more
+     * The halved counts are persisted with the next access or compaction
+     */
+    public void ageHits() {
+        ensureLoaded();
+        entries.replaceAll((name, entry) -> entry.withAccess(entry.lastAccess(), entry.hits() / 2));
+    }
+
+    /**
+     * Removes a file from the index (after it was deleted)
+     */
+    public void remove(String file) {
+        ensureLoaded();
+        Entry previous = entries.remove(file);
+        if (previous != null) {
+            totalBytes.addAndGet(-previous.size());
+            persistedAccess.remove(file);
+            append("D\t" + file);
+        }
+    }
+
+    /**
+     * Updates the entry of a file that was moved (or given a new cache key)
+     * Does nothing if the old name is not in the index.
+     */
+    public void move(String file, String newFile, String newKey) {
+        ensureLoaded();
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            remove(file);
+            put(entry.withLocation(newFile, newKey));
+        }
+    }
+
+    /**
+     * Forgets every entry (after the whole cache was deleted)
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+        entries.clear();
+        persistedAccess.clear();
+        totalBytes.set(0);
+        try {
+            rewrite();
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to write cache index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the total size of all indexed files in bytes
+     */
+    public long getTotalBytes() {
+        ensureLoaded();
+        return totalBytes.get();
+    }
+
+    /**
+     * Gets the number of indexed files
+     */
+    public int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            if (Files.exists(logFile)) {
+                load();
+            } else {
+                rebuild();
+            }
+            loaded = true;
+        }
+    }
+
+    private void load() {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            boolean torn = false;
+            while ((line = reader.readLine()) != null) {
+                logLines++;
+                try {
+                    apply(line.split("\t", -1));
+                } catch (RuntimeException e) {
+                    // Torn write from a crash, skip it
+                    torn = true;
+                }
+            }
+            long total = 0;
+            for (Entry entry : entries.values()) {
+                total += entry.size();
+            }
+            totalBytes.set(total);
+            if (torn || !endsWithLineBreak()) {
+                // Appending to a line without its line break would corrupt the next entry as well
+                rewrite();
+            }
+            System.out.println("[Etched YT-DLP] Loaded cache index: " + entries.size() + " file(s)");
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to read cache index: " + e.getMessage());
+        }
+    }
+
+    private boolean endsWithLineBreak() throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(logFile)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.position(channel.size() - 1).read(last);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private void apply(String[] fields) {
+        switch (fields[0]) {
+            case "P" -> {
+                Entry entry = new Entry(fields[1], fields[2], fields[3], Long.parseLong(fields[4]),
+                        Double.parseDouble(fields[5]), fields[6], Long.parseLong(fields[7]),
+                        Long.parseLong(fields[8]), fields[9], fields.length > 10 ? Long.parseLong(fields[10]) : 0);
+                entries.put(entry.file(), entry);
+                persistedAccess.put(entry.file(), entry.lastAccess());
+            }
+            case "A" -> {
+                long time = Long.parseLong(fields[2]);
+                entries.computeIfPresent(fields[1], (name, entry) -> entry.withAccess(time,
+                        fields.length > 3 ? Long.parseLong(fields[3]) : entry.hits() + 1));
+                persistedAccess.put(fields[1], time);
+            }
+            case "D" -> {
+                entries.remove(fields[1]);
+                persistedAccess.remove(fields[1]);
+            }
+            default -> {
+                // Unknown line, ignore
+            }
+        }
+    }
+
+    /**
+     * Builds the index from the files already in the cache directory (first start with an index)
+     * Both the sharded layout and files of older versions in the top level are picked up,
+     * the staging, metadata and quarantine directories are skipped.
+     */
+    private void rebuild() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        long total = 0;
+        try (var files = Files.walk(cacheDir, 3)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (!isCacheFileName(name)) {
+                    continue; // Partial downloads, streams and other leftovers
+                }
+                String relative = cacheDir.relativize(path).toString().replace('\\', '/');
+                if (relative.startsWith("staging/") || relative.startsWith("metadata_cache/") || relative.startsWith("quarantine/")) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                long created = attributes.lastModifiedTime().toMillis();
+                Entry entry = new Entry(relative, name.substring(0, name.indexOf('.')), "", attributes.size(), -1,
+                        name.substring(name.indexOf('.') + 1).toLowerCase(), created, created, "", 0);
+                entries.put(relative, entry);
+                persistedAccess.put(relative, created);
+                total += attributes.size();
+            }
+            totalBytes.set(total);
+            rewrite();
+            System.out.println("[Etched YT-DLP] Built cache index: " + entries.size() + " file(s)");
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to build cache index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if a file name is a finished cache file ("key.format"), as opposed to partial downloads and streams
+     */
+    static boolean isCacheFileName(String name) {
+        int dot = name.indexOf('.');
+        return dot > 0 && dot == name.lastIndexOf('.') && isCacheFormat(name.substring(dot + 1).toLowerCase());
+    }
+
+    private static boolean isCacheFormat(String format) {
+        return format.equals("mp3") || format.equals("ogg") || format.equals("wav") || format.equals("jpg");
+    }
+
+    private static String toLine(Entry entry) {
+        String url = entry.url().replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        return "P\t" + entry.file() + "\t" + entry.key() + "\t" + url + "\t" + entry.size() + "\t"
+                + entry.durationSeconds() + "\t" + entry.format() + "\t" + entry.createdAt() + "\t"
+                + entry.lastAccess() + "\t" + entry.checksum() + "\t" + entry.hits();
+    }
+
+    private synchronized void append(String line) {
+        try {
+            Files.createDirectories(logFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(line);
+                writer.newLine();
+            }
+            logLines++;
+
+            if (logLines > COMPACT_MIN_LINES && logLines > entries.size() * 2) {
+                rewrite();
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to write cache index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the log with one line per live entry
+     */
+    private synchronized void rewrite() throws IOException {
+        Files.createDirectories(logFile.getParent());
+        Path temp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(toLine(entry));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = entries.size();
+    }
+}
@@ -0,0 +1,123 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+
+/**
+ * Where files live inside the download cache
+ *
+ * Finished tracks and thumbnails are sharded by the first two byte pairs of their
+ * cache key ({@code ab/cd/abcd....mp3}), so no directory ever holds more than a few
+ * hundred entries. Everything that is still being written (yt-dlp .part files,
+ * pipeline and stream output, conversions) goes to a per-job directory under staging
+ * and is moved into its shard once complete. yt-dlp's own metadata cache and files
+ * quarantined by {@link CacheRecovery} have their own directories as well.
+ *
+ * @author PsProfi
+ */
+public class CacheLayout {
+
+    private static final Path ROOT = Paths.get("ytdlp_tools", "ytdlp_cache");
+    private static final Path STAGING = ROOT.resolve("staging");
+    private static final Path METADATA = ROOT.resolve("metadata_cache");
+    private static final Path QUARANTINE = ROOT.resolve("quarantine");
+
+    /**
+     * Gets the cache directory
+     */
+    public static Path getRoot() {
+        return ROOT;
+    }
+
+    /**
+     * Gets the directory for files that are still being written
+     */
+    public static Path getStagingDir() {
+        return STAGING;
+    }
+
+    /**
+     * Gets yt-dlp's --cache-dir
+     */
+    public static Path getMetadataDir() {
+        return METADATA;
+    }
+
+    /**
+     * Gets the directory for damaged files and unfinished downloads found after a crash
+     */
+    public static Path getQuarantineDir() {
+        return QUARANTINE;
+    }
+
+    /**
+     * Gets the path of a finished file in its shard
+     */
+    public static Path getFile(String key, String extension) {
+        return ROOT.resolve(getShard(key)).resolve(key + "." + extension);
+    }
+
+    /**
+     * Gets the staging directory of a job, named after the cache key it produces
+     * (plus a suffix for jobs that can run next to the main download, e.g. "-stream")
+     */
+    public static Path getJobDir(String job) {
+        return STAGING.resolve(job);
+    }
+
+    /**
+     * Gets the shard directory of a key, relative to the cache directory ("ab/cd")
+     */
+    static String getShard(String key) {
+        String prefix = key.length() >= 4 ? key.substring(0, 4).toLowerCase() : "0000";
+        return prefix.substring(0, 2) + "/" + prefix.substring(2, 4);
+    }
+
+    /**
+     * Gets the name of a cached file as used in the cache index (path relative to the cache directory, '/' separated)
+     */
+    public static String getIndexName(Path file) {
+        return ROOT.toAbsolutePath().relativize(file.toAbsolutePath()).toString().replace('\\', '/');
+    }
+
+    /**
+     * Checks if a file is a finished file in the cache (not staging, metadata or quarantine)
+     */
+    public static boolean isCacheFile(Path file) {
+        Path absolute = file.toAbsolutePath();
+        return absolute.startsWith(ROOT.toAbsolutePath()) && !absolute.startsWith(STAGING.toAbsolutePath())
+                && !absolute.startsWith(METADATA.toAbsolutePath()) && !absolute.startsWith(QUARANTINE.toAbsolutePath());
+    }
+
+    /**
+     * Creates the cache, staging and metadata directories
+     */
+    static void createDirectories() throws IOException {
+        Files.createDirectories(STAGING);
+        Files.createDirectories(METADATA);
+    }
+
+    /**
+     * Deletes a file or directory tree, ignoring files that cannot be deleted
+     */
+    static void deleteRecursively(Path path) {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    System.err.println("[Etched YT-DLP] Failed to delete " + file + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to delete " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.psprofi.etchedytdlp.core.ContentHash;
+import com.psprofi.etchedytdlp.core.LocalAudioServer;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves a flat cache directory from older versions into the sharded layout
+ *
+ * Runs once in the background; every file is moved on its own and the index is
+ * updated right after, so a migration cut short by a crash or shutdown simply
+ * continues on the next start. Lookups that happen while it runs migrate the file
+ * they need on demand. A marker file records that the migration is complete.
+ *
+ * @author PsProfi
+ */
+public class CacheMigrator {
+
+    private static final String MARKER = ".sharded";
+
+    private static volatile boolean complete = false;
+
+    /**
+     * Starts the migration in the background unless it has already been completed
+     */
+    public static synchronized void start() {
+        if (complete || Files.exists(CacheLayout.getRoot().resolve(MARKER))) {
+            complete = true;
+            return;
+        }
+        Thread thread = new Thread(CacheMigrator::migrate, "etchedytdlp-cache-migrator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public static boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Moves one finished file from the top level into its shard, if it is still there
+     * @return true if the file was moved
+     */
+    static boolean migrateFile(String key, String extension) {
+        if (complete) {
+            return false;
+        }
+        return moveToShard(CacheLayout.getRoot().resolve(key + "." + extension));
+    }
+
+    private static void migrate() {
+        Path root = CacheLayout.getRoot();
+        int moved = 0;
+        int removed = 0;
+        try {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isRegularFile)) {
+                for (Path path : stream) {
+                    if (!path.getFileName().toString().startsWith(".")) {
+                        files.add(path);
+                    }
+                }
+            }
+            if (!files.isEmpty()) {
+                System.out.println("[Etched YT-DLP] Moving " + files.size() + " cached file(s) into the sharded layout");
+            }
+
+            int failed = 0;
+            for (Path path : files) {
+                if (CacheIndex.isCacheFileName(path.getFileName().toString())) {
+                    if (moveToShard(path)) {
+                        moved++;
+                    } else if (Files.exists(path)) {
+                        failed++;
+                    }
+                } else {
+                    // Partial downloads and streams of an older version cannot be resumed
+                    YtDlpDownloader.deleteCacheFile(path.getFileName().toString());
+                    removed++;
+                }
+            }
+            repairIndex();
+            if (failed > 0) {
+                System.err.println("[Etched YT-DLP] " + failed + " cached file(s) could not be moved, retrying on next start");
+                return;
+            }
+
+            Files.createDirectories(root);
+            Files.writeString(root.resolve(MARKER), "2\n");
+            complete = true;
+            if (moved > 0 || removed > 0) {
+                System.out.println("[Etched YT-DLP] Cache migration complete: " + moved + " file(s) moved, "
+                        + removed + " leftover(s) removed");
+            }
+        } catch (NoSuchFileException e) {
+            // No cache yet, nothing to migrate
+            complete = true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[Etched YT-DLP] Cache migration interrupted, continuing on next start: " + e.getMessage());
+        }
+    }
+
+    private static boolean moveToShard(Path source) {
+        String name = source.getFileName().toString();
+        int dot = name.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        String key = name.substring(0, dot);
+        Path target = CacheLayout.getFile(key, name.substring(dot + 1));
+        CacheIndex index = YtDlpDownloader.getCacheIndex();
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source, target);
+            }
+        } catch (NoSuchFileException e) {
+            return false; // Moved by a lookup in the meantime
+        } catch (FileAlreadyExistsException e) {
+            // Downloaded again into the shard already, the old copy is redundant
+            YtDlpDownloader.deleteCacheFile(name);
+            return false;
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to move " + name + " into its shard: " + e.getMessage());
+            return false;
+        }
+        index.move(name, CacheLayout.getIndexName(target), key);
+        ContentHash.forget(source);
+        LocalAudioServer.moveFile(source, target);
+        LocalAudioServer.getHotTrackCache().invalidate(source);
+        return true;
+    }
+
+    /**
+     * Fixes index entries still using top-level names (the file was moved but the process stopped before the index was updated)
+     */
+    private static void repairIndex() {
+        CacheIndex index = YtDlpDownloader.getCacheIndex();
+        for (CacheIndex.Entry entry : index.getEntries()) {
+            if (entry.file().indexOf('/') >= 0) {
+                continue;
+            }
+            int dot = entry.file().indexOf('.');
+            Path target = dot > 0 ? CacheLayout.getFile(entry.file().substring(0, dot), entry.file().substring(dot + 1)) : null;
+            if (target != null && Files.exists(target)) {
+                index.move(entry.file(), CacheLayout.getIndexName(target), entry.key());
+            } else if (!Files.exists(CacheLayout.getRoot().resolve(entry.file()))) {
+                index.remove(entry.file());
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cleans up after a crash before the cache is used
+ *
+ * Downloads only ever write into their own job directory under staging and are
+ * published with an atomic rename followed by an index commit, so after a crash
+ * the only broken state is (a) job directories that were never published and
+ * (b) index entries whose file is gone or has a different size than was committed.
+ * Both are checked in parallel at startup. Jobs with a valid manifest are handed to
+ * {@link DownloadResumer}, everything else broken is moved to a quarantine directory
+ * instead of being served, and quarantined files are deleted after a week.
+ *
+ * @author PsProfi
+ */
+public class CacheRecovery {
+
+    private static final int THREADS = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors()));
+    private static final long QUARANTINE_KEEP_MS = TimeUnit.DAYS.toMillis(7);
+    private static final long TIMEOUT_SECONDS = 120;
+
+    /**
+     * Queues resumable staging jobs, quarantines orphaned ones and broken index entries (blocks until done)
+     * Runs while the downloader is initialized, so it must only use the index it is given.
+     */
+    public static void recover(CacheIndex index) {
+        long start = System.nanoTime();
+        AtomicInteger orphans = new AtomicInteger();
+        AtomicInteger resumable = new AtomicInteger();
+        AtomicInteger missing = new AtomicInteger();
+        AtomicInteger corrupt = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        // Nothing is downloading yet, everything in staging belongs to a job that did not finish
+        for (Path job : list(CacheLayout.getStagingDir())) {
+            tasks.add(() -> {
+                if (Files.isDirectory(job) && DownloadResumer.isResumable(job)) {
+                    DownloadResumer.addPending(job);
+                    resumable.incrementAndGet();
+                } else {
+                    quarantine(job);
+                    orphans.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        for (Path old : list(CacheLayout.getQuarantineDir())) {
+            tasks.add(() -> {
+                purgeIfExpired(old);
+                return null;
+            });
+        }
+
+        // Check committed files in slices
+        List<CacheIndex.Entry> entries = index.getEntries();
+        int slice = Math.max(256, entries.size() / THREADS + 1);
+        for (int from = 0; from < entries.size(); from += slice) {
+            List<CacheIndex.Entry> part = entries.subList(from, Math.min(entries.size(), from + slice));
+            tasks.add(() -> {
+                for (CacheIndex.Entry entry : part) {
+                    switch (verify(entry)) {
+                        case MISSING -> {
+                            index.remove(entry.file());
+                            missing.incrementAndGet();
+                        }
+                        case CORRUPT -> {
+                            quarantine(CacheLayout.getRoot().resolve(entry.file()));
+                            index.remove(entry.file());
+                            corrupt.incrementAndGet();
+                        }
+                        default -> {
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread thread = new Thread(task, "etchedytdlp-cache-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            pool.invokeAll(tasks, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (orphans.get() > 0 || resumable.get() > 0 || missing.get() > 0 || corrupt.get() > 0) {
+            System.out.println("[Etched YT-DLP] Cache recovery: " + resumable.get() + " download(s) to resume, "
+                    + orphans.get() + " unfinished download(s) and " + corrupt.get() + " damaged file(s) quarantined, "
+                    + missing.get() + " missing file(s) unindexed (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        }
+    }
+
+    private enum State { OK, MISSING, CORRUPT }
+
+    private static State verify(CacheIndex.Entry entry) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(CacheLayout.getRoot().resolve(entry.file()),
+                    BasicFileAttributes.class);
+            // Files are committed with their final size, anything else was changed behind our back
+            return attributes.isRegularFile() && attributes.size() == entry.size() ? State.OK : State.CORRUPT;
+        } catch (NoSuchFileException e) {
+            return State.MISSING;
+        } catch (IOException e) {
+            return State.OK; // Cannot tell, leave it alone
+        }
+    }
+
+    /**
+     * Moves a file or job directory into the quarantine directory
+     */
+    private static void quarantine(Path path) {
+        Path target = CacheLayout.getQuarantineDir().resolve(System.currentTimeMillis() + "-" + path.getFileName());
+        try {
+            Files.createDirectories(target.getParent());
+            Files.move(path, target);
+        } catch (NoSuchFileException e) {
+            // Already gone
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to quarantine " + path.getFileName() + ", deleting it: " + e.getMessage());
+            CacheLayout.deleteRecursively(path);
+        }
+    }
+
+    /**
+     * Deletes a quarantined file or job once it has been kept long enough
+     * The quarantine time is the name prefix, a move keeps the old modification time.
+     */
+    private static void purgeIfExpired(Path path) {
+        String name = path.getFileName().toString();
+        int dash = name.indexOf('-');
+        try {
+            long quarantinedAt = dash > 0 ? Long.parseLong(name.substring(0, dash)) : Files.getLastModifiedTime(path).toMillis();
+            if (System.currentTimeMillis() - quarantinedAt > QUARANTINE_KEEP_MS) {
+                CacheLayout.deleteRecursively(path);
+            }
+        } catch (NumberFormatException | IOException e) {
+            // Not ours or unreadable, leave it
+        }
+    }
+
+    private static List<Path> list(Path dir) {
+        List<Path> paths = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return paths;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to list " + dir + ": " + e.getMessage());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,205 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.psprofi.etchedytdlp.core.DownloadTracker;
+import gg.moonflower.etched.api.util.DownloadProgressListener;
+import net.minecraft.network.chat.Component;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight coalescing of downloads for the same cache key
+ *
+ * When several players burn the same link at once, the first request starts the
+ * download and everyone else waits for the same result instead of spawning their own
+ * yt-dlp into the same output files. The shared download runs on its own thread and
+ * has its own DownloadTracker entry. Each caller keeps its personal download ID:
+ * cancelling it only drops that caller, and the shared download is cancelled once
+ * the last waiting caller is gone.
+ *
+ * @author PsProfi
+ */
+public class DownloadCoalescer {
+
+    private static final Map<String, Flight<?>> flights = new HashMap<>();
+
+    private static final ExecutorService DOWNLOAD_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "etchedytdlp-shared-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The actual download, run once per flight
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        /**
+         * @param workId DownloadTracker ID of the shared download, use it for cancellation checks
+         * @param publish Hands the result to waiting callers early (e.g. once a stream is playable)
+         *                while the work keeps running; later callers get it immediately
+         * @return The result, ignored if one was already published
+         */
+        T run(UUID workId, Consumer<T> publish) throws IOException;
+    }
+
+    /**
+     * One running download and the callers waiting for it
+     */
+    private static class Flight<T> {
+        private final String key;
+        private final UUID workId;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        // Completes when the work has returned, which can be after the result was published
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        // Callers still waiting for the result, guarded by the flights map
+        private final Set<UUID> waiting = new HashSet<>();
+        private boolean abandoned = false;
+        // An abandoned flight for the same key that may still be cleaning up its files
+        private Flight<?> previous;
+
+        Flight(String key, UUID workId, @Nullable Flight<?> previous) {
+            this.key = key;
+            this.workId = workId;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Joins the download for a cache key, starting it if nobody else has
+     * @param key Cache key of the result (the same key must always produce the same result type)
+     * @param url URL being downloaded (for tracking and logs)
+     * @param callerId The caller's own DownloadTracker ID, polled for cancellation
+     * @param progressListener Gets a "downloading" notice when joining an existing download
+     * @param work Runs the download if this caller starts the flight
+     * @return The shared result
+     * @throws IOException If the download failed, or this caller was cancelled
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T join(String key, String url, UUID callerId, @Nullable DownloadProgressListener progressListener,
+                             Work<T> work) throws IOException {
+        Flight<T> flight;
+        boolean leader = false;
+        int waiting;
+        synchronized (flights) {
+            flight = (Flight<T>) flights.get(key);
+            if (flight == null || flight.abandoned) {
+                flight = new Flight<>(key, DownloadTracker.startDownload(url), flight);
+                flights.put(key, flight);
+                leader = true;
+            }
+            flight.waiting.add(callerId);
+            waiting = flight.waiting.size();
+        }
+
+        if (leader) {
+            start(flight, work);
+        } else {
+            System.out.println("[Etched YT-DLP] Joining running download for " + url + " (" + waiting + " waiting)");
+            if (progressListener != null && !flight.result.isDone()) {
+                progressListener.progressStartRequest(Component.translatable("etchedytdlp.progress.downloading"));
+            }
+        }
+
+        try {
+            while (true) {
+                try {
+                    return flight.result.get(250, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (DownloadTracker.isCancelled(callerId)) {
+                        throw new IOException("Download was cancelled");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Download failed: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for download", e);
+        } finally {
+            leave(flight, callerId);
+        }
+    }
+
+    private static <T> void start(Flight<T> flight, Work<T> work) {
+        DOWNLOAD_EXECUTOR.execute(() -> {
+            try {
+                if (flight.previous != null) {
+                    // Let the cancelled download stop before touching the same output files
+                    flight.previous.finished.get();
+                    flight.previous = null;
+                }
+                flight.result.complete(work.run(flight.workId, flight.result::complete));
+            } catch (IOException | RuntimeException e) {
+                flight.result.completeExceptionally(e);
+            } catch (InterruptedException | ExecutionException e) {
+                flight.result.completeExceptionally(new IOException("Interrupted before download started", e));
+            } finally {
+                synchronized (flights) {
+                    flights.remove(flight.key, flight);
+                }
+                DownloadTracker.completeDownload(flight.workId);
+                flight.finished.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Removes a caller, cancelling the shared download if nobody is waiting for it anymore
+     */
+    private static void leave(Flight<?> flight, UUID callerId) {
+        synchronized (flights) {
+            flight.waiting.remove(callerId);
+            if (!flight.waiting.isEmpty() || flight.result.isDone() || flight.abandoned) {
+                return;
+            }
+            // Anyone asking for this key from now on starts a fresh download
+            flight.abandoned = true;
+        }
+        System.out.println("[Etched YT-DLP] Last waiting player left, cancelling shared download for " + flight.key);
+        DownloadTracker.cancelDownload(flight.workId);
+    }
+
+    /**
+     * Checks if a download for the cache key (or its progressive stream) is running
+     */
+    public static boolean isActive(String key) {
+        synchronized (flights) {
+            return flights.containsKey(key) || flights.containsKey("stream:" + key);
+        }
+    }
+
+    /**
+     * Checks if a download of the cache key into the cache is running, not counting progressive streams
+     * A running stream is joined through its own "stream:" key instead.
+     */
+    public static boolean isDownloading(String key) {
+        synchronized (flights) {
+            return flights.containsKey(key);
+        }
+    }
+
+    /**
+     * Gets the number of downloads currently shared between callers (for debugging/monitoring)
+     */
+    public static int getActiveFlightCount() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.psprofi.etchedytdlp.core.AudioMetrics;
+import gg.moonflower.etched.api.util.DownloadProgressListener;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Progress of one yt-dlp download, parsed from its --progress-template output
+ *
+ * yt-dlp is told to print one machine readable line per progress update. Each line
+ * is forwarded to the player's DownloadProgressListener and kept as a throughput
+ * sample; when the job ends a summary is logged and recorded for /metrics.
+ * Downloads can also print the track's metadata as one JSON line before they start,
+ * which is handed to an info listener (see {@link #addInfoArgs}).
+ *
+ * @author PsProfi
+ */
+public class DownloadProgress {
+
+    static final String PREFIX = "[etchedytdlp-progress]";
+    // Fields are "NA" when yt-dlp does not know them (e.g. total size of a live HLS stream)
+    private static final String TEMPLATE = "download:" + PREFIX
+            + " %(progress.downloaded_bytes)s %(progress.total_bytes)s %(progress.total_bytes_estimate)s"
+            + " %(progress.speed)s %(progress.eta)s";
+    static final String INFO_PREFIX = "[etchedytdlp-info]";
+
+    private static final int RECENT_JOB_LIMIT = 64;
+    private static final Deque<JobStats> recentJobs = new ArrayDeque<>();
+
+    /**
+     * One progress update
+     * @param downloadedBytes Bytes downloaded so far
+     * @param totalBytes Total size (exact or estimated), or -1 if unknown
+     * @param bytesPerSecond Current speed, or -1 if unknown
+     * @param etaSeconds Estimated seconds left, or -1 if unknown
+     */
+    public record Sample(long downloadedBytes, long totalBytes, double bytesPerSecond, long etaSeconds) {
+    }
+
+    /**
+     * Throughput summary of a finished download
+     * @param bytes Bytes downloaded
+     * @param millis Time from the first to the last progress update
+     * @param averageBytesPerSecond bytes / time
+     * @param peakBytesPerSecond Highest speed yt-dlp reported
+     * @param samples Number of progress updates
+     */
+    public record JobStats(long bytes, long millis, double averageBytesPerSecond, double peakBytesPerSecond, int samples) {
+    }
+
+    @Nullable
+    private final DownloadProgressListener progressListener;
+    @Nullable
+    private final Consumer<JsonObject> infoListener;
+    private long firstSampleNanos = 0;
+    private long lastSampleNanos = 0;
+    private long downloadedBytes = 0;
+    private double peakBytesPerSecond = 0;
+    private int samples = 0;
+    private boolean downloadStarted = false;
+    private int lastPercent = -1;
+    private boolean finished = false;
+
+    public DownloadProgress(@Nullable DownloadProgressListener progressListener) {
+        this(progressListener, null);
+    }
+
+    /**
+     * @param infoListener Gets the metadata printed by {@link #addInfoArgs}, or null
+     */
+    public DownloadProgress(@Nullable DownloadProgressListener progressListener, @Nullable Consumer<JsonObject> infoListener) {
+        this.progressListener = progressListener;
+        this.infoListener = infoListener;
+    }
+
+    /**
+     * Adds the arguments that make yt-dlp print parseable progress lines
+     * Progress is printed even if --quiet or --print is also given.
+     */
+    static void addArgs(List<String> args) {
+        args.add("--newline");
+        args.add("--progress");
+        args.add("--progress-template");
+        args.add(TEMPLATE);
+    }
+
+    /**
+     * Adds the arguments that make yt-dlp print the track's metadata (the same JSON as --dump-json)
+     * once it has been extracted, without skipping the download
+     * With "-o -" yt-dlp prints to stderr instead of stdout, both are passed to {@link #accept}.
+     */
+    static void addInfoArgs(List<String> args) {
+        args.add("--print");
+        args.add("video:" + INFO_PREFIX + "%()j");
+        args.add("--no-simulate");
+    }
+
+    /**
+     * Handles a line of yt-dlp output
+     * @return true if it was a progress or metadata line (and should not be treated as regular output)
+     */
+    public boolean accept(String line) {
+        if (line.startsWith(INFO_PREFIX)) {
+            acceptInfo(line.substring(INFO_PREFIX.length()));
+            return true;
+        }
+        return acceptProgress(line);
+    }
+
+    private void acceptInfo(String json) {
+        if (infoListener == null) {
+            return;
+        }
+        try {
+            infoListener.accept(JsonParser.parseString(json).getAsJsonObject());
+        } catch (JsonParseException | IllegalStateException e) {
+            System.err.println("[Etched YT-DLP] Ignoring unreadable metadata from yt-dlp: " + e.getMessage());
+        }
+    }
+
+    private synchronized boolean acceptProgress(String line) {
+        Sample sample = parse(line);
+        if (sample == null) {
+            return false;
+        }
+        if (finished) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (samples == 0) {
+            firstSampleNanos = now;
+        }
+        lastSampleNanos = now;
+        samples++;
+        downloadedBytes = Math.max(downloadedBytes, sample.downloadedBytes());
+        peakBytesPerSecond = Math.max(peakBytesPerSecond, sample.bytesPerSecond());
+
+        if (progressListener != null) {
+            if (!downloadStarted && sample.totalBytes() > 0) {
+                downloadStarted = true;
+                progressListener.progressStartDownload(sample.totalBytes());
+            }
+            if (sample.totalBytes() > 0) {
+                int percent = (int) Math.min(100, sample.downloadedBytes() * 100 / sample.totalBytes());
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    progressListener.progressStagePercentage(percent);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ends the job and records its throughput (only the first call counts)
+     */
+    public synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (samples == 0 || downloadedBytes <= 0) {
+            return;
+        }
+
+        long nanos = Math.max(1, lastSampleNanos - firstSampleNanos);
+        double average = samples > 1 ? downloadedBytes * 1e9 / nanos : peakBytesPerSecond;
+        JobStats stats = new JobStats(downloadedBytes, nanos / 1_000_000, average, peakBytesPerSecond, samples);
+        synchronized (recentJobs) {
+            recentJobs.addLast(stats);
+            while (recentJobs.size() > RECENT_JOB_LIMIT) {
+                recentJobs.removeFirst();
+            }
+        }
+        AudioMetrics.recordDownloadThroughput(downloadedBytes, average);
+
+        System.out.println(String.format(Locale.ROOT, "[Etched YT-DLP] Download throughput: %.1f MB in %.1fs (avg %.2f MB/s, peak %.2f MB/s)",
+                downloadedBytes / 1048576.0, nanos / 1e9, average / 1048576.0, peakBytesPerSecond / 1048576.0));
+    }
+
+    /**
+     * Parses a progress line
+     * @return The sample, or null if the line is not a progress line
+     */
+    @Nullable
+    static Sample parse(String line) {
+        int start = line.indexOf(PREFIX);
+        if (start < 0) {
+            return null;
+        }
+        String[] fields = line.substring(start + PREFIX.length()).trim().split("\\s+");
+        if (fields.length < 5) {
+            return null;
+        }
+        long downloaded = (long) parseNumber(fields[0]);
+        long total = (long) parseNumber(fields[1]);
+        if (total <= 0) {
+            total = (long) parseNumber(fields[2]);
+        }
+        return new Sample(Math.max(0, downloaded), total > 0 ? total : -1, parseNumber(fields[3]), (long) parseNumber(fields[4]));
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return -1; // "NA"
+        }
+    }
+
+    /**
+     * Gets the throughput of the most recent downloads, oldest first (for tuning)
+     */
+    public static List<JobStats> getRecentJobs() {
+        synchronized (recentJobs) {
+            return new ArrayList<>(recentJobs);
+        }
+    }
+}
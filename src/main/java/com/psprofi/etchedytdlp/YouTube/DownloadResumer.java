@@ -0,0 +1,225 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.psprofi.etchedytdlp.core.DownloadTracker;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the partial state of interrupted downloads and picks them back up
+ *
+ * Every download job writes a small manifest (URL, cache key, attempts) into its
+ * staging directory. yt-dlp's .part files are kept when a job is interrupted by a
+ * shutdown, or fails while it has partial data, and the next attempt runs with
+ * --continue. Pipelined jobs have nothing to continue from, so a kept pipelined job
+ * is run again as a file download, which can be continued after the next
+ * interruption. At startup the jobs found by {@link CacheRecovery} are resumed one
+ * after another at {@link DownloadScheduler.Priority#BACKGROUND}, so they never hold
+ * a slot a player is waiting for. Jobs that keep failing or are too old are dropped.
+ *
+ * @author PsProfi
+ */
+public class DownloadResumer {
+
+    static final String MANIFEST = "job.manifest";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final List<Path> pending = new ArrayList<>();
+    private static volatile boolean suspending = false;
+    private static ExecutorService resumer;
+
+    /**
+     * Records a job in its staging directory, counting the attempt
+     */
+    static void writeManifest(Path jobDir, String url, String key) {
+        Properties manifest = readManifest(jobDir);
+        int attempts = manifest != null ? parseInt(manifest.getProperty("attempts")) : 0;
+        String created = manifest != null ? manifest.getProperty("created") : null;
+
+        Properties updated = new Properties();
+        updated.setProperty("url", url);
+        updated.setProperty("key", key);
+        updated.setProperty("created", created != null ? created : String.valueOf(System.currentTimeMillis()));
+        updated.setProperty("attempts", String.valueOf(attempts + 1));
+        try (Writer writer = Files.newBufferedWriter(jobDir.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            updated.store(writer, "Etched YT-DLP download job");
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to write job manifest: " + e.getMessage());
+        }
+    }
+
+    @Nullable
+    private static Properties readManifest(Path jobDir) {
+        Path file = jobDir.resolve(MANIFEST);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Properties manifest = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            manifest.load(reader);
+            return manifest.getProperty("url") != null ? manifest : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if a staging directory holds a job worth resuming
+     */
+    static boolean isResumable(Path jobDir) {
+        Properties manifest = readManifest(jobDir);
+        if (manifest == null) {
+            return false;
+        }
+        long created = parseLong(manifest.getProperty("created"));
+        return parseInt(manifest.getProperty("attempts")) < MAX_ATTEMPTS
+                && System.currentTimeMillis() - created < MAX_AGE_MS;
+    }
+
+    /**
+     * Checks if a job directory holds downloaded data yt-dlp can continue from
+     */
+    static boolean hasPartialData(Path jobDir) {
+        if (!Files.isDirectory(jobDir)) {
+            return false;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(jobDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.equals(MANIFEST) && !name.contains(".pipe.") && Files.isRegularFile(file)
+                        && Files.size(file) > 0) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // Treat as empty
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a job directory belongs to an interrupted job, which has to be retried as a file download
+     * (a kept manifest from a shutdown or failed attempt, or partial data yt-dlp can continue from)
+     */
+    static boolean needsFileDownload(Path jobDir) {
+        return readManifest(jobDir) != null || hasPartialData(jobDir);
+    }
+
+    /**
+     * Ends a job: the staging directory is removed unless the job can be resumed later
+     * @param success Whether the file was published
+     * @param cancelled Whether the download was cancelled
+     */
+    static void finishJob(Path jobDir, boolean success, boolean cancelled) {
+        boolean keep = !success && readManifest(jobDir) != null
+                && (suspending || (!cancelled && hasPartialData(jobDir)));
+        if (keep) {
+            System.out.println("[Etched YT-DLP] Keeping partial download " + jobDir.getFileName() + " to resume later");
+        } else {
+            CacheLayout.deleteRecursively(jobDir);
+        }
+    }
+
+    /**
+     * Queues a job found at startup (called by {@link CacheRecovery})
+     */
+    static synchronized void addPending(Path jobDir) {
+        pending.add(jobDir);
+    }
+
+    /**
+     * Called when the server stops: downloads cancelled from now on keep their partial state
+     */
+    public static void suspend() {
+        suspending = true;
+    }
+
+    /**
+     * Leaves the suspended state without resuming anything (for tests)
+     */
+    static void clearSuspended() {
+        suspending = false;
+    }
+
+    /**
+     * Resumes the downloads interrupted by the last shutdown or crash in the background
+     */
+    public static void resumeInterrupted() {
+        suspending = false;
+        YtDlpDownloader.getCacheIndex(); // Runs the startup recovery that finds the jobs
+
+        List<Path> jobs;
+        synchronized (DownloadResumer.class) {
+            jobs = new ArrayList<>(pending);
+            pending.clear();
+            if (jobs.isEmpty()) {
+                return;
+            }
+            if (resumer == null) {
+                resumer = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "etchedytdlp-download-resumer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+            }
+        }
+        System.out.println("[Etched YT-DLP] Resuming " + jobs.size() + " interrupted download(s) in the background");
+        for (Path jobDir : jobs) {
+            resumer.execute(() -> resume(jobDir));
+        }
+    }
+
+    private static void resume(Path jobDir) {
+        Properties manifest = readManifest(jobDir);
+        if (manifest == null || suspending) {
+            return;
+        }
+        String url = manifest.getProperty("url");
+        if (YtDlpDownloader.isCached(url) || !jobDir.getFileName().toString().equals(YtDlpDownloader.getCacheKey(url))) {
+            // Finished in the meantime, or the key changed (e.g. another transcode profile) and the data does not fit
+            CacheLayout.deleteRecursively(jobDir);
+            if (YtDlpDownloader.isCached(url)) {
+                return;
+            }
+        }
+
+        UUID downloadId = DownloadTracker.startDownload(url);
+        try {
+            DownloadCoalescer.join(YtDlpDownloader.getCacheKey(url), url, downloadId, null,
+                    (workId, publish) -> DownloadScheduler.run(workId, DownloadScheduler.Priority.BACKGROUND, null,
+                            () -> YtDlpDownloader.downloadAudio(url, null, workId)));
+            System.out.println("[Etched YT-DLP] Resumed download finished: " + url);
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Resumed download failed: " + url + " (" + e.getMessage() + ")");
+        } finally {
+            DownloadTracker.completeDownload(downloadId);
+        }
+    }
+
+    private static int parseInt(@Nullable String value) {
+        return (int) parseLong(value);
+    }
+
+    private static long parseLong(@Nullable String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.psprofi.etchedytdlp.core.DownloadTracker;
+import gg.moonflower.etched.api.util.DownloadProgressListener;
+import net.minecraft.network.chat.Component;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many yt-dlp/ffmpeg downloads run at the same time
+ *
+ * Downloads wait in a queue ordered by priority class, then by arrival, and start
+ * when a slot is free. Waiting callers see their queue position through their
+ * DownloadProgressListener. Jobs whose download is cancelled in DownloadTracker
+ * leave the queue immediately. There is no per-player limit: Etched does not tell
+ * a sound source who a download is for, and every client resolves its own player's
+ * records anyway.
+ *
+ * @author PsProfi
+ */
+public class DownloadScheduler {
+
+    /**
+     * Priority classes, earlier constants are started first
+     */
+    public enum Priority {
+        /** A player is waiting for the record */
+        INTERACTIVE,
+        /** Fetching tracks ahead of time */
+        PREFETCH,
+        /** Maintenance work nobody is waiting for (e.g. resuming interrupted downloads) */
+        BACKGROUND
+    }
+
+    /**
+     * A scheduled download
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run() throws IOException;
+    }
+
+    private static final long POSITION_POLL_MS = 250;
+
+    private static int maxConcurrent = 3;
+
+    private static final Comparator<Job> ORDER = Comparator.<Job>comparingInt(job -> job.priority.ordinal())
+            .thenComparingLong(job -> job.sequence);
+
+    // Guarded by the class lock
+    private static final TreeSet<Job> queue = new TreeSet<>(ORDER);
+    private static final Map<UUID, Job> queuedById = new HashMap<>();
+    private static int running = 0;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    static {
+        DownloadTracker.addCancelListener(DownloadScheduler::onCancelled);
+    }
+
+    /**
+     * One download waiting for or holding a slot
+     */
+    private static class Job {
+        private final UUID downloadId;
+        private final Priority priority;
+        private final long sequence;
+        private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+        Job(UUID downloadId, Priority priority, long sequence) {
+            this.downloadId = downloadId;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Sets the limit, queued downloads are started right away if the new limit allows it
+     * @param maxConcurrent Downloads running at the same time
+     */
+    public static synchronized void configure(int maxConcurrent) {
+        DownloadScheduler.maxConcurrent = Math.max(1, maxConcurrent);
+        dispatch();
+    }
+
+    /**
+     * Waits for a download slot, then runs the task
+     * @param downloadId DownloadTracker ID of the download, cancelling it removes the job from the queue
+     * @param priority Priority class
+     * @param progressListener Gets the queue position while waiting
+     * @return The task's result
+     * @throws IOException If the task failed, or the download was cancelled while waiting
+     */
+    public static <T> T run(UUID downloadId, Priority priority, @Nullable DownloadProgressListener progressListener,
+                            Task<T> task) throws IOException {
+        Job job = new Job(downloadId, priority, sequence.getAndIncrement());
+        synchronized (DownloadScheduler.class) {
+            queue.add(job);
+            queuedById.put(downloadId, job);
+            dispatch();
+        }
+        if (DownloadTracker.isCancelled(downloadId)) {
+            // Cancelled before it was queued, the listener has already fired
+            onCancelled(downloadId);
+        }
+
+        awaitStart(job, progressListener);
+        try {
+            return task.run();
+        } finally {
+            release(job);
+        }
+    }
+
+    private static void awaitStart(Job job, @Nullable DownloadProgressListener progressListener) throws IOException {
+        int reportedPosition = 0;
+        while (true) {
+            try {
+                job.started.get(POSITION_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                int position = getQueuePosition(job.downloadId);
+                if (position > 0 && position != reportedPosition) {
+                    reportedPosition = position;
+                    System.out.println("[Etched YT-DLP] Download " + job.downloadId + " queued at position " + position);
+                    if (progressListener != null) {
+                        progressListener.progressStartRequest(Component.translatable("etchedytdlp.progress.queued", position));
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Download was cancelled while queued");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                onCancelled(job.downloadId);
+                throw new IOException("Interrupted while waiting for a download slot", e);
+            }
+        }
+    }
+
+    /**
+     * Starts queued jobs while slots are free
+     */
+    private static synchronized void dispatch() {
+        while (running < maxConcurrent && !queue.isEmpty()) {
+            Job job = queue.pollFirst();
+            queuedById.remove(job.downloadId);
+            running++;
+            job.started.complete(null);
+        }
+    }
+
+    private static synchronized void release(Job job) {
+        running--;
+        dispatch();
+    }
+
+    private static void onCancelled(UUID downloadId) {
+        Job job;
+        synchronized (DownloadScheduler.class) {
+            job = queuedById.remove(downloadId);
+            if (job == null) {
+                return;
+            }
+            queue.remove(job);
+        }
+        job.started.completeExceptionally(new IOException("Download was cancelled while queued"));
+    }
+
+    /**
+     * Gets a download's position in the queue
+     * @return 1 for the next job to start, 0 if the download is not queued
+     */
+    public static synchronized int getQueuePosition(UUID downloadId) {
+        Job job = queuedById.get(downloadId);
+        if (job == null) {
+            return 0;
+        }
+        return queue.headSet(job).size() + 1;
+    }
+
+    /**
+     * Checks if a download would start right away instead of waiting in the queue
+     */
+    public static synchronized boolean hasFreeSlot() {
+        return queue.isEmpty() && running < maxConcurrent;
+    }
+
+    public static synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public static synchronized int getRunningCount() {
+        return running;
+    }
+}
@@ -0,0 +1,213 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Maps URLs to the media they point to ("extractor:id")
+ *
+ * Different links to the same track (youtu.be/X, youtube.com/watch?v=X&amp;t=30,
+ * music.youtube.com/watch?v=X&amp;list=...) resolve to the same media ID, so they share
+ * one cache entry and one download. Known hosts are canonicalized locally; for every
+ * other host the extractor and ID yt-dlp reports in its metadata are remembered in an
+ * alias table (ytdlp_tools/media_aliases.log, one "url TAB mediaId" line per URL).
+ *
+ * @author PsProfi
+ */
+public class MediaKeys {
+
+    private static final Path ALIAS_FILE = Paths.get("ytdlp_tools", "media_aliases.log");
+    private static final Pattern YOUTUBE_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+    // youtube.com/<path>/<id> forms that point to a single video
+    private static final Set<String> YOUTUBE_PATHS = Set.of("shorts", "embed", "live", "v");
+    private static final Pattern SAFE_ID = Pattern.compile("[^\\t\\r\\n]+");
+
+    private static final Map<String, String> aliases = new ConcurrentHashMap<>();
+    private static volatile boolean loaded = false;
+
+    /**
+     * Gets the media ID of a URL
+     * @return "extractor:id", or null if the URL is neither canonicalizable nor in the alias table
+     */
+    @Nullable
+    public static String resolve(String url) {
+        String mediaId = canonicalize(url);
+        if (mediaId != null) {
+            return mediaId;
+        }
+        ensureLoaded();
+        return aliases.get(url.trim());
+    }
+
+    /**
+     * Remembers the media ID yt-dlp reported for a URL (from its --dump-json output)
+     */
+    public static void learn(String url, JsonObject info) {
+        if (canonicalize(url) != null) {
+            return;
+        }
+        String extractor = getString(info, "extractor_key");
+        String id = getString(info, "id");
+        if (extractor == null || id == null) {
+            return;
+        }
+        String mediaId = extractor.toLowerCase(Locale.ROOT) + ":" + id;
+        if (!SAFE_ID.matcher(mediaId).matches()) {
+            return;
+        }
+
+        ensureLoaded();
+        String key = url.trim();
+        if (!SAFE_ID.matcher(key).matches() || mediaId.equals(aliases.put(key, mediaId))) {
+            return;
+        }
+        synchronized (MediaKeys.class) {
+            try {
+                Files.createDirectories(ALIAS_FILE.getParent());
+                try (BufferedWriter writer = Files.newBufferedWriter(ALIAS_FILE, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(key + "\t" + mediaId);
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                System.err.println("[Etched YT-DLP] Failed to write media alias: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Derives the media ID of a URL on a known host without asking yt-dlp
+     * @return "extractor:id", or null if the host is not known or the URL is not a single track
+     */
+    @Nullable
+    static String canonicalize(String url) {
+        URI uri;
+        try {
+            uri = new URI(url.trim());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        String host = uri.getHost();
+        String path = uri.getPath();
+        if (host == null || path == null) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        for (String prefix : new String[]{"www.", "m.", "music."}) {
+            if (host.startsWith(prefix)) {
+                host = host.substring(prefix.length());
+            }
+        }
+        String[] segments = path.replaceAll("^/+|/+$", "").split("/+");
+
+        switch (host) {
+            case "youtu.be" -> {
+                return youtube(segments[0]);
+            }
+            case "youtube.com", "youtube-nocookie.com" -> {
+                if (segments.length == 1 && segments[0].equals("watch")) {
+                    return youtube(getQueryParameter(uri.getRawQuery(), "v"));
+                }
+                if (segments.length == 2 && YOUTUBE_PATHS.contains(segments[0])) {
+                    return youtube(segments[1]);
+                }
+                return null;
+            }
+            case "soundcloud.com" -> {
+                // soundcloud.com/<user>/<track>, sets and user pages are not single tracks
+                if (segments.length == 2 && !segments[1].equals("sets")) {
+                    return "soundcloud:" + segments[0].toLowerCase(Locale.ROOT) + "/" + segments[1].toLowerCase(Locale.ROOT);
+                }
+                return null;
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gets the site a URL on a known host belongs to, the same for every link form of a track
+     * (youtu.be, music.youtube.com, ... all give "youtube.com")
+     * @return The site's host, or null if the URL is not canonicalizable
+     */
+    @Nullable
+    static String getSiteHost(String url) {
+        String mediaId = canonicalize(url);
+        if (mediaId == null) {
+            return null;
+        }
+        return mediaId.substring(0, mediaId.indexOf(':')) + ".com";
+    }
+
+    @Nullable
+    private static String youtube(@Nullable String id) {
+        return id != null && YOUTUBE_ID.matcher(id).matches() ? "youtube:" + id : null;
+    }
+
+    @Nullable
+    private static String getQueryParameter(@Nullable String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String getString(JsonObject info, String name) {
+        JsonElement element = info.get(name);
+        if (element == null || !element.isJsonPrimitive()) {
+            return null;
+        }
+        String value = element.getAsString();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (MediaKeys.class) {
+            if (loaded) {
+                return;
+            }
+            if (Files.exists(ALIAS_FILE)) {
+                try (BufferedReader reader = Files.newBufferedReader(ALIAS_FILE, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int tab = line.indexOf('\t');
+                        if (tab > 0 && tab < line.length() - 1) {
+                            // Later lines win if yt-dlp ever reported a different ID
+                            aliases.put(line.substring(0, tab), line.substring(tab + 1));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[Etched YT-DLP] Failed to read media aliases: " + e.getMessage());
+                }
+            }
+            loaded = true;
+        }
+    }
+}
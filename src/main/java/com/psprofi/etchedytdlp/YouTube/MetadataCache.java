@@ -0,0 +1,385 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers what yt-dlp reported about a track, so title, artist and thumbnail
+ * do not cost a --dump-json run every time a record is burned
+ *
+ * Entries are keyed by media ID (see {@link MediaKeys}), so every link to the same
+ * track shares one entry, and expire after a configurable time. Only the fields the
+ * mod reads are kept, and they are persisted in an append-only log
+ * (ytdlp_tools/media_info.log, one "key TAB fetchedAt TAB json" line per fetch) that
+ * is compacted when it is loaded. Failed lookups are remembered for a short time in
+ * memory only, so a broken link is not retried on every attempt but gets a fresh
+ * chance after a restart. Concurrent lookups of the same track share one yt-dlp run,
+ * which can also be a download that prints the metadata on its way (see {@link #expect}).
+ *
+ * @author PsProfi
+ */
+public class MetadataCache {
+
+    private static final Path LOG_FILE = Paths.get("ytdlp_tools", "media_info.log");
+    // Fields of yt-dlp's info JSON that are used by the mod
+    private static final List<String> FIELDS = List.of("id", "extractor_key", "title", "artist", "uploader",
+            "channel", "creator", "thumbnail", "duration", "webpage_url");
+    private static final int COMPACT_MIN_LINES = 256;
+    // How long a lookup waits for another run to report the metadata before it asks yt-dlp itself
+    private static final long WAIT_SECONDS = 30;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<JsonObject>> inFlight = new ConcurrentHashMap<>();
+    private static volatile long ttlMs = TimeUnit.DAYS.toMillis(7);
+    private static volatile long negativeTtlMs = TimeUnit.MINUTES.toMillis(5);
+    private static volatile boolean loaded = false;
+
+    /**
+     * A cached lookup
+     * @param info Stored fields, or null if the lookup failed
+     * @param error Message of the failure
+     * @param fetchedAt When yt-dlp was asked
+     */
+    private record Entry(@Nullable JsonObject info, @Nullable String error, long fetchedAt) {
+    }
+
+    /**
+     * A download that announced it will report the metadata of a track
+     */
+    public record Expectation(String key, CompletableFuture<JsonObject> lookup) {
+    }
+
+    /**
+     * Runs yt-dlp for a URL that is not cached
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        JsonObject fetch() throws IOException;
+    }
+
+    /**
+     * Sets how long entries are used
+     * @param ttl Time in ms metadata is kept (0 disables the cache)
+     * @param negativeTtl Time in ms a failed lookup is not retried (0 = always retry)
+     */
+    public static void configure(long ttl, long negativeTtl) {
+        ttlMs = Math.max(0, ttl);
+        negativeTtlMs = Math.max(0, negativeTtl);
+    }
+
+    /**
+     * Gets the metadata of a URL from the cache, or fetches and caches it
+     * @param noPlaylist Whether playlists are resolved to the single linked track
+     * @throws IOException If yt-dlp failed, now or within the negative TTL
+     */
+    public static JsonObject get(String url, boolean noPlaylist, Fetcher fetcher) throws IOException {
+        if (ttlMs <= 0) {
+            return fetcher.fetch();
+        }
+        ensureLoaded();
+        String key = getKey(url, noPlaylist);
+        Entry cached = getValid(key);
+        if (cached != null) {
+            if (cached.info() == null) {
+                throw new IOException("yt-dlp failed recently: " + cached.error());
+            }
+            return cached.info();
+        }
+
+        CompletableFuture<JsonObject> lookup = new CompletableFuture<>();
+        CompletableFuture<JsonObject> running;
+        while ((running = inFlight.putIfAbsent(key, lookup)) != null) {
+            JsonObject info = await(running);
+            if (info != null) {
+                return info;
+            }
+            // The download ended (or is stuck in the queue) without printing metadata, ask yt-dlp directly
+            inFlight.remove(key, running);
+        }
+        try {
+            JsonObject info = fetcher.fetch();
+            lookup.complete(info);
+            // The fetch may have taught MediaKeys the media ID of an unknown host, store under that
+            String mediaKey = getKey(url, noPlaylist);
+            put(mediaKey, new Entry(trim(info), null, System.currentTimeMillis()), true);
+            if (!mediaKey.equals(key)) {
+                entries.remove(key);
+            }
+            return info;
+        } catch (IOException e) {
+            lookup.completeExceptionally(e);
+            if (negativeTtlMs > 0) {
+                put(key, new Entry(null, e.getMessage(), System.currentTimeMillis()), false);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, lookup);
+        }
+    }
+
+    /**
+     * Announces that a download is about to start that prints the metadata of a URL, so lookups
+     * wait for it instead of running yt-dlp themselves
+     * @return Handle for {@link #settle}, or null if the metadata is cached or already being fetched
+     */
+    @Nullable
+    public static Expectation expect(String url) {
+        if (ttlMs <= 0) {
+            return null;
+        }
+        ensureLoaded();
+        String key = getKey(url, true);
+        if (getValid(key) != null) {
+            return null;
+        }
+        CompletableFuture<JsonObject> lookup = new CompletableFuture<>();
+        return inFlight.putIfAbsent(key, lookup) == null ? new Expectation(key, lookup) : null;
+    }
+
+    /**
+     * Stores the metadata a download printed, waking up lookups that wait for it
+     */
+    public static void offer(String url, JsonObject info) {
+        String key = getKey(url, true);
+        MediaKeys.learn(url, info);
+        String mediaKey = getKey(url, true);
+        if (ttlMs > 0) {
+            ensureLoaded();
+            put(mediaKey, new Entry(trim(info), null, System.currentTimeMillis()), true);
+        }
+        for (String lookupKey : new String[]{key, mediaKey}) {
+            CompletableFuture<JsonObject> lookup = inFlight.get(lookupKey);
+            if (lookup != null) {
+                lookup.complete(info);
+            }
+        }
+    }
+
+    /**
+     * Ends an expectation once its download has finished
+     * Lookups still waiting run yt-dlp themselves: the download may have failed for reasons
+     * that have nothing to do with the metadata (e.g. it was cancelled while queued).
+     */
+    public static void settle(Expectation expectation) {
+        expectation.lookup().complete(null);
+        inFlight.remove(expectation.key(), expectation.lookup());
+    }
+
+    /**
+     * Checks if the metadata of a URL is cached
+     */
+    public static boolean isCached(String url) {
+        if (ttlMs <= 0) {
+            return false;
+        }
+        ensureLoaded();
+        Entry entry = getValid(getKey(url, true));
+        return entry != null && entry.info() != null;
+    }
+
+    /**
+     * Forgets the metadata of a URL (all links to the same track)
+     */
+    public static void invalidate(String url) {
+        ensureLoaded();
+        for (boolean noPlaylist : new boolean[]{true, false}) {
+            String key = getKey(url, noPlaylist);
+            if (entries.remove(key) != null) {
+                append(key, null);
+            }
+        }
+    }
+
+    /**
+     * Forgets all metadata
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        loaded = true;
+        try {
+            Files.deleteIfExists(LOG_FILE);
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to delete metadata cache: " + e.getMessage());
+        }
+    }
+
+    private static String getKey(String url, boolean noPlaylist) {
+        String mediaId = MediaKeys.resolve(url);
+        String key = mediaId != null ? mediaId : "url:" + url.trim();
+        return noPlaylist ? key : key + "#playlist";
+    }
+
+    @Nullable
+    private static Entry getValid(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - entry.fetchedAt();
+        if (age < (entry.info() != null ? ttlMs : negativeTtlMs)) {
+            return entry;
+        }
+        entries.remove(key, entry);
+        return null;
+    }
+
+    @Nullable
+    private static JsonObject await(CompletableFuture<JsonObject> lookup) throws IOException {
+        try {
+            return lookup.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for metadata", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw new IOException(io.getMessage(), io);
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Copies the fields the mod uses, the full output is often hundreds of KB of format lists
+     */
+    private static JsonObject trim(JsonObject info) {
+        JsonObject trimmed = new JsonObject();
+        for (String field : FIELDS) {
+            JsonElement value = info.get(field);
+            if (value != null && !value.isJsonNull()) {
+                trimmed.add(field, value);
+            }
+        }
+        return trimmed;
+    }
+
+    private static void put(String key, Entry entry, boolean persist) {
+        entries.put(key, entry);
+        if (persist) {
+            append(key, entry);
+        }
+    }
+
+    /**
+     * Appends an entry to the log, a null entry records that the key was invalidated
+     */
+    private static synchronized void append(String key, @Nullable Entry entry) {
+        if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+            return;
+        }
+        try {
+            Files.createDirectories(LOG_FILE.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(LOG_FILE, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(format(key, entry));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to write metadata cache: " + e.getMessage());
+        }
+    }
+
+    private static String format(String key, @Nullable Entry entry) {
+        // Gson escapes control characters, so the JSON is always a single line without tabs
+        return entry != null && entry.info() != null
+                ? key + "\t" + entry.fetchedAt() + "\t" + entry.info()
+                : key + "\t0\t-";
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (MetadataCache.class) {
+            if (loaded) {
+                return;
+            }
+            int lines = 0;
+            if (Files.exists(LOG_FILE)) {
+                try (BufferedReader reader = Files.newBufferedReader(LOG_FILE, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines++;
+                        load(line);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[Etched YT-DLP] Failed to read metadata cache: " + e.getMessage());
+                }
+            }
+            loaded = true;
+            if (lines >= COMPACT_MIN_LINES && lines > entries.size() * 2) {
+                compact();
+            }
+        }
+    }
+
+    private static void load(String line) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length < 3) {
+            return;
+        }
+        try {
+            long fetchedAt = Long.parseLong(parts[1]);
+            if (parts[2].equals("-") || System.currentTimeMillis() - fetchedAt >= ttlMs) {
+                // Later lines win, so an invalidation or expired fetch drops an older entry
+                entries.remove(parts[0]);
+                return;
+            }
+            entries.put(parts[0], new Entry(JsonParser.parseString(parts[2]).getAsJsonObject(), null, fetchedAt));
+        } catch (NumberFormatException | JsonParseException | IllegalStateException e) {
+            // Line cut short by a crash
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries
+     */
+    private static void compact() {
+        Path temp = LOG_FILE.resolveSibling(LOG_FILE.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    if (entry.getValue().info() != null) {
+                        writer.write(format(entry.getKey(), entry.getValue()));
+                        writer.newLine();
+                    }
+                }
+            }
+            try {
+                Files.move(temp, LOG_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, LOG_FILE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to compact metadata cache: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * MP3 encoder settings used when a track has to be transcoded
+ *
+ * The profile is chosen per source host (falling back to the server default) and is
+ * part of the cache key, so the same URL cached with different profiles never collides.
+ * The hifi profile uses the plain key, which keeps caches from older versions valid.
+ *
+ * @author PsProfi
+ */
+public enum TranscodeProfile {
+    /** 320 kbps stereo, 44.1 kHz */
+    HIFI("320k", 44100, 2, true),
+    /** 128 kbps stereo, 44.1 kHz */
+    STANDARD("128k", 44100, 2, true),
+    /** 64 kbps mono, 32 kHz, for positional jukebox audio on slow connections */
+    LOWBW("64k", 32000, 1, false);
+
+    private static volatile TranscodeProfile defaultProfile = HIFI;
+    private static volatile Map<String, TranscodeProfile> hostProfiles = Map.of();
+
+    private final String bitrate;
+    private final int sampleRate;
+    private final int channels;
+    private final boolean passthroughAllowed;
+
+    TranscodeProfile(String bitrate, int sampleRate, int channels, boolean passthroughAllowed) {
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.passthroughAllowed = passthroughAllowed;
+    }
+
+    /**
+     * Sets the default profile and the per-host overrides
+     * @param defaultProfile Profile for hosts without an override
+     * @param hostRules Entries of the form "host=profile" (e.g. "soundcloud.com=lowbw"), a host also matches its subdomains
+     */
+    public static void configure(TranscodeProfile defaultProfile, List<? extends String> hostRules) {
+        Map<String, TranscodeProfile> rules = new HashMap<>();
+        for (String rule : hostRules) {
+            int equals = rule.indexOf('=');
+            TranscodeProfile profile = equals > 0 ? byName(rule.substring(equals + 1)) : null;
+            if (profile == null) {
+                System.err.println("[Etched YT-DLP] Ignoring invalid host profile rule: " + rule);
+                continue;
+            }
+            rules.put(rule.substring(0, equals).trim().toLowerCase(Locale.ROOT), profile);
+        }
+        TranscodeProfile.defaultProfile = defaultProfile;
+        TranscodeProfile.hostProfiles = rules;
+    }
+
+    /**
+     * Checks if a string is a valid "host=profile" rule (config validation)
+     */
+    public static boolean isValidRule(Object rule) {
+        if (!(rule instanceof String text)) {
+            return false;
+        }
+        int equals = text.indexOf('=');
+        return equals > 0 && byName(text.substring(equals + 1)) != null;
+    }
+
+    /**
+     * Looks up a profile by name, case-insensitive
+     * @return The profile, or null if there is none with that name
+     */
+    @Nullable
+    public static TranscodeProfile byName(String name) {
+        for (TranscodeProfile profile : values()) {
+            if (profile.getName().equals(name.trim().toLowerCase(Locale.ROOT))) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the profile used for a URL
+     * Known hosts are matched by their site, so every link of a track gets the same profile (and cache key).
+     */
+    public static TranscodeProfile forUrl(String url) {
+        Map<String, TranscodeProfile> rules = hostProfiles;
+        if (!rules.isEmpty()) {
+            try {
+                String host = MediaKeys.getSiteHost(url);
+                if (host == null) {
+                    host = new URI(url).getHost();
+                }
+                while (host != null) {
+                    TranscodeProfile profile = rules.get(host.toLowerCase(Locale.ROOT));
+                    if (profile != null) {
+                        return profile;
+                    }
+                    int dot = host.indexOf('.');
+                    host = dot >= 0 ? host.substring(dot + 1) : null;
+                }
+            } catch (URISyntaxException e) {
+                // Fall through to the default
+            }
+        }
+        return defaultProfile;
+    }
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets what is appended to the URL hash to form the cache key
+     */
+    public String getKeySuffix() {
+        return this == HIFI ? "" : "-" + getName();
+    }
+
+    /**
+     * Whether sources Etched can play may be stored as they are (see {@link YtDlpDownloader.AudioStorage#PASSTHROUGH})
+     * Profiles that reduce quality on purpose always transcode.
+     */
+    public boolean isPassthroughAllowed() {
+        return passthroughAllowed;
+    }
+
+    /**
+     * Adds the ffmpeg output arguments for this profile
+     */
+    public void addEncodeArgs(List<String> command) {
+        command.add("-vn"); // No video
+        command.add("-acodec");
+        command.add("libmp3lame");
+        command.add("-b:a");
+        command.add(bitrate);
+        command.add("-ar");
+        command.add(String.valueOf(sampleRate));
+        command.add("-ac");
+        command.add(String.valueOf(channels));
+    }
+
+    /**
+     * Gets the --postprocessor-args value that makes yt-dlp's own conversion use this profile
+     */
+    public String getPostprocessorArgs() {
+        return "ffmpeg:-acodec libmp3lame -b:a " + bitrate + " -ar " + sampleRate + " -ac " + channels;
+    }
+}
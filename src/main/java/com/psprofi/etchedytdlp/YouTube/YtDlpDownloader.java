@@ -1,12 +1,17 @@
 package com.psprofi.etchedytdlp.YouTube;
 
+import com.psprofi.etchedytdlp.core.AudioMetrics;
+import com.psprofi.etchedytdlp.core.ContentHash;
 import com.psprofi.etchedytdlp.core.DownloadTracker;
+import com.psprofi.etchedytdlp.core.LocalAudioServer;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
 import net.minecraft.network.chat.Component;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -25,8 +30,31 @@ import java.util.UUID;
  */
 public class YtDlpDownloader {
 
-    private static final Path CACHE_DIR = Paths.get("ytdlp_tools", "ytdlp_cache");
+    /**
+     * How downloaded audio is stored in the cache
+     */
+    public enum AudioStorage {
+        /** Always re-encode to MP3 with the transcode profile */
+        TRANSCODE,
+        /** Keep MP3 and Vorbis sources as they are (stream copy), re-encode only codecs Etched cannot play */
+        PASSTHROUGH
+    }
+
+    private static final Path CACHE_DIR = CacheLayout.getRoot();
     private static final Set<String> SUPPORTED_FORMATS = new HashSet<>();
+    private static final CacheIndex cacheIndex = CacheIndex.createDefault(CACHE_DIR);
+
+    // Extensions yt-dlp may give the raw download before it is converted
+    private static final String[] DOWNLOAD_EXTENSIONS = {"mp3", "m4a", "webm", "opus", "ogg", "wav", "aac", "flac", "mp4", "mka"};
+
+    // Extensions of finished tracks in the cache, in lookup order
+    private static final String[] CACHED_AUDIO_EXTENSIONS = {"mp3", "ogg"};
+
+    // Subdirectory of a job directory that downloads write the track's thumbnail to
+    private static final String THUMBNAIL_DIR = "thumbnail";
+
+    private static volatile AudioStorage audioStorage = AudioStorage.PASSTHROUGH;
+    private static volatile boolean pipelinedDownloads = true;
 
     static {
         // Formats supported by Etched/Minecraft
@@ -35,16 +63,17 @@ public class YtDlpDownloader {
         SUPPORTED_FORMATS.add("wav");
 
         try {
-            if (!Files.exists(CACHE_DIR)) {
-                Files.createDirectories(CACHE_DIR);
-            }
+            CacheLayout.createDirectories();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // Before any job can start, so every staging directory found here is an orphan
+        CacheRecovery.recover(cacheIndex);
+        CacheMigrator.start();
     }
 
     /**
-     * Generates a hash for the URL to use as cache filename
+     * Generates a hash of a media ID (or of the URL if it has none) to use as cache filename
      */
     private static String hashUrl(String url) {
         try {
@@ -64,18 +93,105 @@ public class YtDlpDownloader {
     }
 
     /**
-     * Gets the cached file path for a URL
+     * Sets how new downloads are stored, tracks already in the cache are kept as they are
+     */
+    public static void configureAudioStorage(AudioStorage storage) {
+        audioStorage = storage;
+    }
+
+    /**
+     * Enables or disables pipelined downloads (yt-dlp output fed straight into ffmpeg, no intermediate file)
+     */
+    public static void configurePipelinedDownloads(boolean enabled) {
+        pipelinedDownloads = enabled;
+    }
+
+    /**
+     * Gets the key under which the audio of a URL is cached (media ID hash plus transcode profile)
+     * Links to the same track share a key, see {@link MediaKeys}.
+     */
+    public static String getCacheKey(String url) {
+        String mediaId = MediaKeys.resolve(url);
+        return hashUrl(mediaId != null ? mediaId : url) + TranscodeProfile.forUrl(url).getKeySuffix();
+    }
+
+    /**
+     * Gets the key older versions cached a URL under (hash of the raw URL)
+     */
+    private static String getLegacyCacheKey(String url) {
+        return hashUrl(url) + TranscodeProfile.forUrl(url).getKeySuffix();
+    }
+
+    /**
+     * Finds the finished audio file of a cache key (mp3, or ogg when stored as passthrough)
+     * @return The file, or null if the track is not cached
+     */
+    @Nullable
+    private static Path findCachedAudio(String urlHash) {
+        for (String extension : CACHED_AUDIO_EXTENSIONS) {
+            Path candidate = CacheLayout.getFile(urlHash, extension);
+            if (Files.exists(candidate) || (CacheMigrator.migrateFile(urlHash, extension) && Files.exists(candidate))) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the cached audio of a URL, adopting files cached under its legacy key
+     * @return The file, or null if the track is not cached
+     */
+    @Nullable
+    private static Path findCachedAudio(String url, String key) {
+        Path cached = findCachedAudio(key);
+        if (cached == null && adoptLegacyFiles(url, key)) {
+            cached = findCachedAudio(key);
+        }
+        return cached;
+    }
+
+    /**
+     * Renames the files cached under the URL's legacy key (raw URL hash) to its media key
+     * @return true if any file was moved
      */
-    private static Path getCachedPath(String url, String extension) {
-        String hash = hashUrl(url);
-        return CACHE_DIR.resolve(hash + "." + extension);
+    private static boolean adoptLegacyFiles(String url, String key) {
+        String legacyKey = getLegacyCacheKey(url);
+        if (legacyKey.equals(key)) {
+            return false;
+        }
+        boolean adopted = false;
+        List<String> extensions = new ArrayList<>(List.of(CACHED_AUDIO_EXTENSIONS));
+        extensions.add("jpg");
+        for (String extension : extensions) {
+            CacheMigrator.migrateFile(legacyKey, extension);
+            Path source = CacheLayout.getFile(legacyKey, extension);
+            Path target = CacheLayout.getFile(key, extension);
+            if (!Files.exists(source) || Files.exists(target)) {
+                continue;
+            }
+            try {
+                moveAtomically(source, target);
+            } catch (IOException e) {
+                System.err.println("[Etched YT-DLP] Failed to move " + source.getFileName() + " to its media key: " + e.getMessage());
+                continue;
+            }
+            cacheIndex.move(CacheLayout.getIndexName(source), CacheLayout.getIndexName(target), key);
+            ContentHash.forget(source);
+            LocalAudioServer.moveFile(source, target);
+            LocalAudioServer.getHotTrackCache().invalidate(source);
+            adopted = true;
+        }
+        if (adopted) {
+            System.out.println("[Etched YT-DLP] Moved cached files of " + url + " to key " + key);
+        }
+        return adopted;
     }
 
     /**
      * Checks if audio is already cached
      */
     public static boolean isCached(String url) {
-        return Files.exists(getCachedPath(url, "mp3"));
+        return findCachedAudio(url, getCacheKey(url)) != null;
     }
 
     /**
@@ -90,10 +206,59 @@ public class YtDlpDownloader {
         return "";
     }
 
+    /**
+     * Makes a downloaded file playable by Etched with as little work as possible
+     * In passthrough mode MP3 and Vorbis audio is only remuxed (if the container is wrong),
+     * everything else is transcoded to MP3 with the given profile.
+     */
+    private static Path prepareForPlayback(Path inputFile, TranscodeProfile profile, @Nullable DownloadProgressListener progressListener,
+                                           @Nullable UUID downloadId) throws IOException {
+        String extension = getFileExtension(inputFile);
+        if ("mp3".equals(extension)) {
+            return inputFile;
+        }
+        if (isPassthrough(profile)) {
+            String codec = YtDlpManager.probeAudioCodec(inputFile);
+            if ("vorbis".equals(codec)) {
+                if ("ogg".equals(extension)) {
+                    return inputFile;
+                }
+                System.out.println("[Etched YT-DLP] Vorbis audio, copying into ogg without re-encoding");
+                return convertAudio(inputFile, "ogg", List.of("-vn", "-c:a", "copy"), progressListener, downloadId);
+            }
+            if ("mp3".equals(codec)) {
+                System.out.println("[Etched YT-DLP] MP3 audio, copying into mp3 without re-encoding");
+                return convertAudio(inputFile, "mp3", List.of("-vn", "-c:a", "copy"), progressListener, downloadId);
+            }
+            System.out.println("[Etched YT-DLP] Codec " + codec + " is not playable by Etched, transcoding");
+        }
+        return convertToMp3(inputFile, profile, progressListener, downloadId);
+    }
+
+    /**
+     * Checks if sources Etched can play are stored as they are for a profile
+     */
+    private static boolean isPassthrough(TranscodeProfile profile) {
+        return audioStorage == AudioStorage.PASSTHROUGH && profile.isPassthroughAllowed();
+    }
+
     /**
      * Converts an audio file to mp3 format using FFmpeg
      */
-    private static Path convertToMp3(Path inputFile, @Nullable DownloadProgressListener progressListener, @Nullable UUID downloadId) throws IOException {
+    private static Path convertToMp3(Path inputFile, TranscodeProfile profile, @Nullable DownloadProgressListener progressListener,
+                                     @Nullable UUID downloadId) throws IOException {
+        List<String> encodeArgs = new ArrayList<>();
+        profile.addEncodeArgs(encodeArgs);
+        return convertAudio(inputFile, "mp3", encodeArgs, progressListener, downloadId);
+    }
+
+    /**
+     * Converts an audio file to another format using FFmpeg
+     * @param outputFormat Extension of the output file
+     * @param codecArgs ffmpeg output arguments (encoder settings, or a stream copy)
+     */
+    private static Path convertAudio(Path inputFile, String outputFormat, List<String> codecArgs,
+                                     @Nullable DownloadProgressListener progressListener, @Nullable UUID downloadId) throws IOException {
         // Check if cancelled before conversion
         if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
             throw new IOException("Download cancelled before conversion");
@@ -105,11 +270,11 @@ public class YtDlpDownloader {
 
         String inputFormat = getFileExtension(inputFile);
         Path outputFile = inputFile.getParent().resolve(
-                inputFile.getFileName().toString().replaceFirst("\\.[^.]+$", ".mp3")
+                inputFile.getFileName().toString().replaceFirst("\\.[^.]+$", "." + outputFormat)
         );
 
-        // If already mp3, just return it
-        if ("mp3".equals(inputFormat)) {
+        // If already in the target format, just return it
+        if (outputFormat.equals(inputFormat)) {
             return inputFile;
         }
 
@@ -124,29 +289,22 @@ public class YtDlpDownloader {
             throw new IOException("FFmpeg not found. Cannot convert audio format.");
         }
 
-        // Build ffmpeg command for high-quality MP3
         List<String> command = new ArrayList<>();
         command.add(ffmpegPath.toString());
         command.add("-i");
         command.add(inputFile.toString());
-        command.add("-vn"); // No video
-        command.add("-acodec");
-        command.add("libmp3lame");
-        command.add("-b:a");
-        command.add("320k");
-        command.add("-ar");
-        command.add("44100");
-        command.add("-ac");
-        command.add("2"); // Stereo
+        command.addAll(codecArgs);
         command.add("-y"); // Overwrite output file
         command.add(outputFile.toString());
 
         ProcessBuilder pb = new ProcessBuilder(command);
         pb.redirectErrorStream(true);
 
+        long startNanos = System.nanoTime();
+        boolean success = false;
         try {
-            System.out.println("[Etched YT-DLP] Converting " + inputFormat + " to mp3...");
-            Process process = pb.start();
+            System.out.println("[Etched YT-DLP] Converting " + inputFormat + " to " + outputFormat + "...");
+            Process process = YtDlpManager.track(pb.start());
 
             // Read output to prevent blocking
             try (var reader = new java.io.BufferedReader(new java.io.InputStreamReader(process.getInputStream()))) {
@@ -179,13 +337,16 @@ public class YtDlpDownloader {
             // Delete original file after successful conversion
             Files.deleteIfExists(inputFile);
 
-            System.out.println("[Etched YT-DLP] Successfully converted to mp3: " + outputFile.getFileName() +
+            System.out.println("[Etched YT-DLP] Successfully converted to " + outputFormat + ": " + outputFile.getFileName() +
                     " (" + (Files.size(outputFile) / 1024) + " KB)");
 
+            success = true;
             return outputFile;
 
         } catch (InterruptedException e) {
             throw new IOException("Conversion interrupted", e);
+        } finally {
+            AudioMetrics.recordProcess("ffmpeg", System.nanoTime() - startNanos, success);
         }
     }
 
@@ -194,7 +355,7 @@ public class YtDlpDownloader {
      * @param url The URL to download from
      * @param progressListener Optional progress listener
      * @param downloadId Optional download ID for cancellation tracking
-     * @return Path to the cached audio file (always mp3)
+     * @return Path to the cached audio file (mp3, or ogg for Vorbis sources in passthrough mode)
      */
     public static Path downloadAudio(String url, @Nullable DownloadProgressListener progressListener, @Nullable UUID downloadId)
             throws IOException {
@@ -206,14 +367,18 @@ public class YtDlpDownloader {
         }
 
         YtDlpManager.ensureInstalled(progressListener);
-        Path cachedFile = getCachedPath(url, "mp3");
+        String urlHash = getCacheKey(url);
+        Path cachedFile = findCachedAudio(url, urlHash);
 
         // Return cached file if exists
-        if (Files.exists(cachedFile)) {
+        boolean cached = cachedFile != null;
+        AudioMetrics.recordDiskCache(cached);
+        if (cached) {
             if (progressListener != null) {
                 progressListener.progressStartRequest(Component.translatable("etchedytdlp.progress.cached"));
             }
             System.out.println("[Etched YT-DLP] Using cached file for: " + url);
+            recordAccess(url, cachedFile);
             return cachedFile;
         }
 
@@ -227,17 +392,59 @@ public class YtDlpDownloader {
             throw new IOException("Download cancelled during setup");
         }
 
-        String urlHash = hashUrl(url);
-        String outputTemplate = CACHE_DIR.resolve(urlHash).toString();
+        TranscodeProfile profile = TranscodeProfile.forUrl(url);
+        System.out.println("[Etched YT-DLP] Downloading with profile " + profile.getName() + ": " + url);
+
+        // An interrupted job can only be continued by a file download, piped output cannot be picked up again
+        Path jobDir = CacheLayout.getJobDir(urlHash);
+        boolean resuming = DownloadResumer.needsFileDownload(jobDir);
+        if (resuming) {
+            System.out.println("[Etched YT-DLP] Resuming partial download: " + url);
+        }
+
+        if (pipelinedDownloads && !resuming) {
+            try {
+                return downloadAudioPipelined(url, urlHash, profile, progressListener, downloadId);
+            } catch (YtDlpManager.StdoutUnsupportedException e) {
+                // Some downloaders cannot write to stdout, the file based download still works for them
+                // Any other failure (network, extractor, ffmpeg) would fail the same way again, so it is not retried
+                System.err.println("[Etched YT-DLP] Pipelined download not possible, retrying with file download: " + e.getMessage());
+            }
+        }
+
+        // yt-dlp writes into the job's staging directory, only the finished file is published into its shard
+        Files.createDirectories(jobDir);
+        DownloadResumer.writeManifest(jobDir, url, urlHash);
+        boolean success = false;
+        try {
+            Path file = downloadAudioFile(url, urlHash, profile, jobDir, progressListener, downloadId);
+            success = true;
+            return file;
+        } finally {
+            DownloadResumer.finishJob(jobDir, success, downloadId != null && DownloadTracker.isCancelled(downloadId));
+        }
+    }
+
+    /**
+     * Downloads audio to a file with yt-dlp (extraction and post-processing included), converts it if
+     * Etched cannot play it and publishes it into the cache
+     */
+    private static Path downloadAudioFile(String url, String urlHash, TranscodeProfile profile, Path jobDir,
+                                          @Nullable DownloadProgressListener progressListener, @Nullable UUID downloadId)
+            throws IOException {
+        boolean passthrough = isPassthrough(profile);
+        String outputTemplate = jobDir.resolve(urlHash).toString();
 
         List<String> args = new ArrayList<>();
 
         // Extract audio only
         args.add("-x");
 
-        // Specify format to convert to
-        args.add("--audio-format");
-        args.add("mp3");
+        // Specify format to convert to (passthrough keeps the source codec, see prepareForPlayback)
+        if (!passthrough) {
+            args.add("--audio-format");
+            args.add("mp3");
+        }
 
         // Best audio quality
         args.add("--audio-quality");
@@ -246,22 +453,27 @@ public class YtDlpDownloader {
         // Don't download playlists
         args.add("--no-playlist");
 
+        // Continue from the .part file of an interrupted attempt
+        args.add("--continue");
+
         // Don't preserve file modification time
         args.add("--no-mtime");
 
         // Prefer ffmpeg for post-processing
         args.add("--prefer-ffmpeg");
 
-        // Select best audio format
+        // Select best audio format, in passthrough mode preferring codecs Etched plays without a transcode
         args.add("-f");
-        args.add("bestaudio/best");
+        args.add(passthrough ? "bestaudio[acodec=vorbis]/bestaudio[acodec=mp3]/bestaudio/best" : "bestaudio/best");
 
-        // Post-processor args for high quality MP3
-        args.add("--postprocessor-args");
-        args.add("ffmpeg:-acodec libmp3lame -b:a 320k -ar 44100");
+        // Post-processor args for the profile's MP3 settings
+        if (!passthrough) {
+            args.add("--postprocessor-args");
+            args.add(profile.getPostprocessorArgs());
+        }
 
         args.add("--cache-dir");
-        args.add(CACHE_DIR.resolve("metadata_cache").toString());
+        args.add(CacheLayout.getMetadataDir().toString());
         args.add("--no-check-certificates");
         args.add("--no-warnings");
         args.add("--quiet");
@@ -269,6 +481,13 @@ public class YtDlpDownloader {
         args.add("--skip-unavailable-fragments");
 
 
+        // Print the final path once the file is complete and moved into place
+        args.add("--print");
+        args.add("after_move:filepath");
+
+        // Metadata and thumbnail from the same run
+        addCombinedArgs(args, jobDir, urlHash);
+
         // Output template (yt-dlp will add extension)
         args.add("-o");
         args.add(outputTemplate + ".%(ext)s");
@@ -276,129 +495,429 @@ public class YtDlpDownloader {
         // The URL to download
         args.add(url);
 
+        List<String> printed;
         try {
-            YtDlpManager.executeWithProgress(args, 600, progressListener);
+            printed = YtDlpManager.executeWithProgress(args, 600, createProgress(url, progressListener));
         } catch (IOException e) {
             // If download failed, clean up and rethrow
             System.err.println("[Etched YT-DLP] Download failed: " + e.getMessage());
             throw new IOException("Failed to download audio: " + e.getMessage(), e);
         }
 
-        // Wait for download to complete (check for .part files) with periodic cancellation checks
-        for (int i = 0; i < 5; i++) {
-            if (Files.exists(cachedFile)) break;
+        if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
+            System.out.println("[Etched YT-DLP] Download cancelled before file processing");
+            throw new IOException("Download cancelled before conversion");
+        }
 
-        // Check if cancelled during wait
-            if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
-                System.out.println("[Etched YT-DLP] Download cancelled during processing, cleaning up...");
-                cleanupPartialDownload(urlHash);
-                throw new IOException("Download cancelled");
-            }
+        Path downloadedFile = findPrintedFile(printed);
+        if (downloadedFile == null) {
+            // Nothing printed (e.g. an old yt-dlp), look for the names our output template produces
+            downloadedFile = findDownloadedFile(jobDir, urlHash);
+        }
+        if (downloadedFile == null) {
+            throw new IOException("Download failed: No audio file was created. Check yt-dlp logs.");
+        }
 
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException ignored) {}
+        String extension = getFileExtension(downloadedFile);
+        System.out.println("[Etched YT-DLP] Found downloaded file: " + downloadedFile.getFileName() + " (format: " + extension + ")");
 
-            // Check if .part file exists (download in progress)
-            boolean hasPartFile = Files.list(CACHE_DIR)
-                    .anyMatch(p -> p.getFileName().toString().startsWith(urlHash) &&
-                            p.getFileName().toString().endsWith(".part"));
+        // Convert it if Etched cannot play it as it is
+        downloadedFile = prepareForPlayback(downloadedFile, profile, progressListener, downloadId);
+        if (!Files.exists(downloadedFile)) {
+            throw new IOException("Download incomplete: audio file not created. Check ffmpeg installation.");
+        }
+        validateAudioFile(downloadedFile);
 
-            if (!hasPartFile && Files.exists(cachedFile)) {
-                break;
-            }
+        // Final check before publishing, the job directory is removed by the caller
+        if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
+            System.out.println("[Etched YT-DLP] Download cancelled after conversion");
+            throw new IOException("Download cancelled after conversion");
         }
 
-        // If mp3 doesn't exist, find downloaded file and convert if necessary
-        if (!Files.exists(cachedFile)) {
-            // Check one more time before conversion
+        Path cachedFile = CacheLayout.getFile(urlHash, getFileExtension(downloadedFile));
+        publish(url, urlHash, downloadedFile, cachedFile);
+        publishThumbnail(url, jobDir, urlHash);
+
+        System.out.println("[Etched YT-DLP] Successfully downloaded and cached: " + url);
+        return cachedFile;
+    }
+
+    /**
+     * Downloads audio in a single pass: yt-dlp writes the media to stdout, and it goes straight
+     * into ffmpeg (or, for MP3/Vorbis in passthrough mode, straight into the file). The output is
+     * written under a temporary name and moved into the cache atomically once it is complete.
+     */
+    private static Path downloadAudioPipelined(String url, String urlHash, TranscodeProfile profile,
+                                               @Nullable DownloadProgressListener progressListener, @Nullable UUID downloadId)
+            throws IOException {
+        boolean passthrough = isPassthrough(profile);
+        String format = passthrough ? "bestaudio[acodec=vorbis]/bestaudio[acodec=mp3]/bestaudio/best" : "bestaudio/best";
+        // Only runs when no interrupted job was kept (see DownloadResumer.needsFileDownload), anything left is stale
+        Path jobDir = openJobDir(urlHash);
+        List<String> ytdlpArgs = buildStdoutArgs(url, format, jobDir, urlHash);
+        DownloadResumer.writeManifest(jobDir, url, urlHash);
+
+        Path cachedFile;
+        boolean success = false;
+        try {
+            YtDlpManager.PipelineOutput output = YtDlpManager.executeRelayPipeline(ytdlpArgs, header -> {
+                String extension = passthrough ? detectPlayableFormat(header) : null;
+                if (extension != null) {
+                    System.out.println("[Etched YT-DLP] Source is " + extension + ", storing it without re-encoding");
+                    return new YtDlpManager.PipelineOutput(jobDir.resolve(urlHash + ".pipe." + extension), null);
+                }
+                Path target = jobDir.resolve(urlHash + ".pipe.mp3");
+                List<String> ffmpegArgs = new ArrayList<>();
+                ffmpegArgs.add("-hide_banner");
+                ffmpegArgs.add("-loglevel");
+                ffmpegArgs.add("error");
+                ffmpegArgs.add("-i");
+                ffmpegArgs.add("pipe:0");
+                profile.addEncodeArgs(ffmpegArgs);
+                ffmpegArgs.add("-f");
+                ffmpegArgs.add("mp3");
+                ffmpegArgs.add("-y");
+                ffmpegArgs.add(target.toString());
+                return new YtDlpManager.PipelineOutput(target, ffmpegArgs);
+            }, 600, () -> downloadId != null && DownloadTracker.isCancelled(downloadId), createProgress(url, progressListener));
+
+            Path tempFile = output.file();
+            cachedFile = CacheLayout.getFile(urlHash, getFileExtension(tempFile));
+            validateAudioFile(tempFile);
             if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
-                System.out.println("[Etched YT-DLP] Download cancelled before file processing");
-                cleanupPartialDownload(urlHash);
-                throw new IOException("Download cancelled before conversion");
+                throw new IOException("Download cancelled after completion");
             }
+            publish(url, urlHash, tempFile, cachedFile);
+            publishThumbnail(url, jobDir, urlHash);
+            success = true;
+        } finally {
+            // Piped output cannot be continued, the job is only kept to be run again after a shutdown
+            DownloadResumer.finishJob(jobDir, success, downloadId != null && DownloadTracker.isCancelled(downloadId));
+        }
 
-            Path downloadedFile = findDownloadedFile(urlHash);
+        System.out.println("[Etched YT-DLP] Successfully downloaded and cached (pipelined): " + url);
+        return cachedFile;
+    }
 
-            if (downloadedFile == null) {
-                throw new IOException("Download failed: No audio file was created. Check yt-dlp logs.");
-            }
+    /**
+     * Checks the first bytes of a media stream for formats Etched plays as they are
+     * @return "mp3" or "ogg" (Vorbis), or null if the stream has to be transcoded
+     */
+    @Nullable
+    private static String detectPlayableFormat(byte[] header) {
+        if (header.length < 4) {
+            return null;
+        }
+        boolean hasId3 = header[0] == 'I' && header[1] == 'D' && header[2] == '3';
+        if (hasId3 || isMp3Frame(header)) {
+            return "mp3";
+        }
+        boolean isOgg = header[0] == 'O' && header[1] == 'g' && header[2] == 'g' && header[3] == 'S';
+        // The first Ogg page carries the codec's identification header (0x01 "vorbis" or "OpusHead")
+        if (isOgg && new String(header, 0, Math.min(header.length, 64), StandardCharsets.ISO_8859_1).contains("\u0001vorbis")) {
+            return "ogg";
+        }
+        return null;
+    }
 
-            String extension = getFileExtension(downloadedFile);
-            System.out.println("[Etched YT-DLP] Found downloaded file: " + downloadedFile.getFileName() + " (format: " + extension + ")");
+    /**
+     * Checks for an MPEG audio Layer III frame header
+     * The 11-bit frame sync alone is not enough, AAC in ADTS frames (FFF1/FFF9) starts the same way.
+     */
+    private static boolean isMp3Frame(byte[] header) {
+        if (header.length < 3 || (header[0] & 0xFF) != 0xFF || (header[1] & 0xE0) != 0xE0) {
+            return false;
+        }
+        int version = (header[1] >> 3) & 0x03;
+        int layer = (header[1] >> 1) & 0x03;
+        int bitrate = (header[2] >> 4) & 0x0F;
+        int sampleRate = (header[2] >> 2) & 0x03;
+        return version != 0x01 && layer == 0x01 && bitrate != 0x0F && sampleRate != 0x03;
+    }
 
-            // Check if format needs conversion
-            if (!"mp3".equals(extension)) {
-                System.out.println("[Etched YT-DLP] Format is not MP3, converting...");
-                downloadedFile = convertToMp3(downloadedFile, progressListener, downloadId);
-            }
+    /**
+     * Moves a finished file into place so readers never see a partial file
+     */
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-            // Final check before moving to cache
-            if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
-                System.out.println("[Etched YT-DLP] Download cancelled after conversion");
-                Files.deleteIfExists(downloadedFile);
-                throw new IOException("Download cancelled after conversion");
-            }
+    /**
+     * Builds yt-dlp arguments that write the selected media to stdout
+     * @param jobDir Staging directory of the job, gets the thumbnail
+     * @param key Cache key the job produces
+     */
+    private static List<String> buildStdoutArgs(String url, String format, Path jobDir, String key) {
+        List<String> args = new ArrayList<>();
+        args.add("-f");
+        args.add(format);
+        args.add("--no-playlist");
+        args.add("--cache-dir");
+        args.add(CacheLayout.getMetadataDir().toString());
+        args.add("--no-check-certificates");
+        args.add("--no-warnings");
+        args.add("--quiet");
+        args.add("--skip-unavailable-fragments");
+        addCombinedArgs(args, jobDir, key);
+        args.add("-o");
+        args.add("-"); // Write media to stdout
+        args.add(url);
+        return args;
+    }
 
-            // Move to final location if needed
-            if (!downloadedFile.equals(cachedFile)) {
-                Files.move(downloadedFile, cachedFile, StandardCopyOption.REPLACE_EXISTING);
-            }
+    /**
+     * Adds the arguments that make a download also print the track's metadata and write its
+     * thumbnail, so a single yt-dlp run serves the title, album cover and audio of a record
+     */
+    private static void addCombinedArgs(List<String> args, Path jobDir, String key) {
+        DownloadProgress.addInfoArgs(args);
+        args.add("--write-thumbnail");
+        args.add("--convert-thumbnails");
+        args.add("jpg");
+        args.add("-o");
+        args.add("thumbnail:" + jobDir.resolve(THUMBNAIL_DIR).resolve(key) + ".%(ext)s");
+    }
+
+    /**
+     * Creates the progress of a download that hands its printed metadata to the {@link MetadataCache}
+     */
+    private static DownloadProgress createProgress(String url, @Nullable DownloadProgressListener progressListener) {
+        return new DownloadProgress(progressListener, info -> MetadataCache.offer(url, info));
+    }
+
+    /**
+     * Publishes the thumbnail a download wrote next to the audio, if there is one
+     * A missing thumbnail is not an error, many sites do not have one.
+     */
+    private static void publishThumbnail(String url, Path jobDir, String key) {
+        Path stagedFile = jobDir.resolve(THUMBNAIL_DIR).resolve(key + ".jpg");
+        Path cachedFile = CacheLayout.getFile(key, "jpg");
+        if (!Files.isRegularFile(stagedFile) || Files.exists(cachedFile)) {
+            return;
         }
+        try {
+            moveAtomically(stagedFile, cachedFile);
+            addToIndex(url, key, cachedFile, false);
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to cache thumbnail: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the file a progressive download writes to while it is being streamed
+     */
+    public static Path getStreamingPath(String url) {
+        String key = getCacheKey(url);
+        return CacheLayout.getJobDir(key + "-stream").resolve(key + ".stream.mp3");
+    }
 
-        // Final check before returning
+    /**
+     * Downloads audio while transcoding it on the fly, so the output file can be
+     * streamed to players while it grows. yt-dlp writes the source stream to stdout
+     * and ffmpeg encodes it straight into the streaming file.
+     * @param url The URL to download from
+     * @param streamFile The growing output file (see {@link #getStreamingPath(String)})
+     * @param progressListener Optional progress listener
+     * @param downloadId Optional download ID for cancellation tracking
+     * @return Path to the finished cached audio file (always mp3, encoded with the URL's transcode profile)
+     */
+    public static Path downloadAudioStreaming(String url, Path streamFile, @Nullable DownloadProgressListener progressListener,
+                                              @Nullable UUID downloadId) throws IOException {
         if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
-            System.out.println("[Etched YT-DLP] Download cancelled, removing completed file");
-            // Delete the file we just created since it was cancelled
-            Files.deleteIfExists(cachedFile);
-            throw new IOException("Download cancelled after completion");
+            throw new IOException("Download cancelled before start");
         }
 
-        if (!Files.exists(cachedFile)) {
-            throw new IOException("Download incomplete: MP3 file not created. Check ffmpeg installation.");
+        YtDlpManager.ensureInstalled(progressListener);
+        String key = getCacheKey(url);
+        Path cachedFile = CacheLayout.getFile(key, "mp3");
+        AudioMetrics.recordDiskCache(false); // Only streamed when the track was not cached
+
+        if (progressListener != null) {
+            progressListener.progressStartRequest(Component.translatable("etchedytdlp.progress.downloading"));
         }
 
-        // Validate the final file
-        validateAudioFile(cachedFile);
+        List<String> ytdlpArgs = buildStdoutArgs(url, "bestaudio/best", streamFile.getParent(), key);
+
+        List<String> ffmpegArgs = new ArrayList<>();
+        ffmpegArgs.add("-hide_banner");
+        ffmpegArgs.add("-loglevel");
+        ffmpegArgs.add("error");
+        ffmpegArgs.add("-i");
+        ffmpegArgs.add("pipe:0");
+        TranscodeProfile.forUrl(url).addEncodeArgs(ffmpegArgs);
+        // No Xing header: ffmpeg would seek back to rewrite bytes players already received
+        ffmpegArgs.add("-write_xing");
+        ffmpegArgs.add("0");
+        ffmpegArgs.add("-f");
+        ffmpegArgs.add("mp3");
+        ffmpegArgs.add("-y");
+        ffmpegArgs.add(streamFile.toString());
+
+        Path jobDir = openJobDir(streamFile.getParent());
+        try {
+            System.out.println("[Etched YT-DLP] Streaming download started: " + url);
+            YtDlpManager.executePipeline(ytdlpArgs, ffmpegArgs, 600,
+                    () -> downloadId != null && DownloadTracker.isCancelled(downloadId), createProgress(url, progressListener));
 
-        System.out.println("[Etched YT-DLP] Successfully downloaded and cached: " + url);
+            validateAudioFile(streamFile);
+
+            if (downloadId != null && DownloadTracker.isCancelled(downloadId)) {
+                throw new IOException("Download cancelled after completion");
+            }
+
+            // Promote into the normal cache
+            publish(url, key, streamFile, cachedFile);
+            publishThumbnail(url, jobDir, key);
+        } finally {
+            CacheLayout.deleteRecursively(jobDir);
+        }
+
+        System.out.println("[Etched YT-DLP] Successfully streamed and cached: " + url);
         return cachedFile;
     }
 
     /**
-     * Cleans up partial downloads for a given URL hash
+     * Creates an empty staging directory for a job, removing leftovers of an earlier attempt
+     * Jobs are coalesced per cache key (see {@link DownloadCoalescer}), so no other job uses the directory.
      */
-    private static void cleanupPartialDownload(String urlHash) {
+    private static Path openJobDir(String job) throws IOException {
+        return openJobDir(CacheLayout.getJobDir(job));
+    }
+
+    private static Path openJobDir(Path jobDir) throws IOException {
+        CacheLayout.deleteRecursively(jobDir);
+        Files.createDirectories(jobDir);
+        return jobDir;
+    }
+
+    /**
+     * Publishes a finished, validated file from staging: an atomic rename into its shard, then the index commit
+     * Lookups only check the shard, so they see either nothing or the complete file.
+     * @param key Cache key the job was started with
+     */
+    private static void publish(String url, String key, Path stagedFile, Path cachedFile) throws IOException {
+        moveAtomically(stagedFile, cachedFile);
+        addToIndex(url, key, cachedFile, true);
+    }
+
+    /**
+     * Adds a finished file to the cache index
+     * @param key Cache key the file is stored under. Taken from the job rather than looked up again:
+     *            the metadata a download prints can change {@link #getCacheKey(String)} while it runs.
+     * @param probeDuration Whether to read the playback length with ffprobe
+     */
+    private static void addToIndex(String url, String key, Path file, boolean probeDuration) {
         try {
-            Files.list(CACHE_DIR)
-                    .filter(p -> p.getFileName().toString().startsWith(urlHash))
-                    .forEach(p -> {
-                        try {
-                            Files.deleteIfExists(p);
-                            System.out.println("[Etched YT-DLP] Cleaned up partial file: " + p.getFileName());
-                        } catch (IOException e) {
-                            System.err.println("[Etched YT-DLP] Failed to cleanup file: " + e.getMessage());
-                        }
-                    });
+            long now = System.currentTimeMillis();
+            double duration = probeDuration ? YtDlpManager.probeDuration(file) : -1;
+            cacheIndex.put(new CacheIndex.Entry(CacheLayout.getIndexName(file), key, url, Files.size(file),
+                    duration, getFileExtension(file), now, now, ContentHash.of(file), 1));
         } catch (IOException e) {
-            System.err.println("[Etched YT-DLP] Error during cleanup: " + e.getMessage());
+            System.err.println("[Etched YT-DLP] Failed to index cached file: " + e.getMessage());
         }
+        CacheEvictor.requestReclaim();
     }
 
     /**
-     * Finds the downloaded file with the given hash prefix
+     * Records a cache hit, indexing the file if it was added behind the index' back
      */
-    private static Path findDownloadedFile(String hashPrefix) throws IOException {
-        try (var files = Files.list(CACHE_DIR)) {
-            return files
-                    .filter(f -> f.getFileName().toString().startsWith(hashPrefix))
-                    .filter(f -> !f.toString().endsWith(".part"))
-                    .filter(f -> !f.toString().endsWith(".ytdl"))
-                    .filter(f -> !f.toString().endsWith("_debug.txt"))
-                    .filter(Files::isRegularFile)
-                    .findFirst()
-                    .orElse(null);
+    private static void recordAccess(String url, Path file) {
+        String name = CacheLayout.getIndexName(file);
+        if (cacheIndex.get(name) == null) {
+            addToIndex(url, getCacheKey(url), file, false);
+        } else {
+            cacheIndex.touch(name);
+        }
+    }
+
+    /**
+     * Records that a cached file was played through the local audio server
+     */
+    public static void recordPlayback(Path file) {
+        if (CacheLayout.isCacheFile(file)) {
+            cacheIndex.touch(CacheLayout.getIndexName(file));
+        }
+    }
+
+    /**
+     * Deletes a file from the cache directory and the index
+     * @return Bytes freed
+     */
+    static long deleteCacheFile(String name) {
+        Path path = CACHE_DIR.resolve(name);
+        try {
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            Files.deleteIfExists(path);
+            cacheIndex.remove(name);
+            ContentHash.forget(path);
+            LocalAudioServer.unregisterFile(path);
+            LocalAudioServer.getHotTrackCache().invalidate(path);
+            return size;
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to delete: " + name + " (" + e.getMessage() + ")");
+            return 0;
+        }
+    }
+
+    /**
+     * Cleans up the files of a given URL hash: its staging job directories and finished files in its shard
+     * Only the names our jobs can produce are checked, no shard is listed
+     */
+    private static void cleanupPartialDownload(String urlHash) {
+        for (String job : new String[]{urlHash, urlHash + "-stream", urlHash + "-thumb"}) {
+            Path jobDir = CacheLayout.getJobDir(job);
+            if (Files.exists(jobDir)) {
+                CacheLayout.deleteRecursively(jobDir);
+                System.out.println("[Etched YT-DLP] Cleaned up staging job: " + job);
+            }
+        }
+        for (String extension : DOWNLOAD_EXTENSIONS) {
+            Path path = CacheLayout.getFile(urlHash, extension);
+            if (Files.exists(path)) {
+                deleteCacheFile(CacheLayout.getIndexName(path));
+            }
+        }
+    }
+
+    /**
+     * Finds the downloaded file with the given hash prefix in a job directory
+     */
+    private static Path findDownloadedFile(Path jobDir, String hashPrefix) {
+        for (String extension : DOWNLOAD_EXTENSIONS) {
+            Path candidate = jobDir.resolve(hashPrefix + "." + extension);
+            if (Files.isRegularFile(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the file yt-dlp reported with --print after_move:filepath
+     * @return The last printed path that exists, or null
+     */
+    @Nullable
+    private static Path findPrintedFile(List<String> printed) {
+        for (int i = printed.size() - 1; i >= 0; i--) {
+            String line = printed.get(i).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                Path path = Paths.get(line);
+                if (Files.isRegularFile(path)) {
+                    return path;
+                }
+            } catch (InvalidPathException e) {
+                // Not a path, some other output
+            }
         }
+        return null;
     }
 
     /**
@@ -423,10 +942,13 @@ public class YtDlpDownloader {
 
         switch (extension) {
             case "mp3":
-                // Check for ID3 tag or MP3 frame sync
+                // Check for ID3 tag or MP3 frame header
                 boolean hasId3 = (header[0] == 'I' && header[1] == 'D' && header[2] == '3');
-                boolean hasMp3Sync = ((header[0] & 0xFF) == 0xFF && (header[1] & 0xE0) == 0xE0);
-                valid = hasId3 || hasMp3Sync;
+                valid = hasId3 || isMp3Frame(header);
+                if (!valid && (header[0] & 0xFF) == 0xFF && (header[1] & 0xF6) == 0xF0) {
+                    // ADTS header (layer bits 00): AAC that Etched cannot play, keep it out of the cache
+                    throw new IOException("Audio file contains AAC, not MP3");
+                }
                 if (!valid) {
                     System.err.println("[Etched YT-DLP] Warning: MP3 file may be corrupted (invalid headers)");
                 }
@@ -454,6 +976,21 @@ public class YtDlpDownloader {
         }
     }
 
+    /**
+     * Gets the cached thumbnail of a URL (written by its audio download or {@link #downloadThumbnail})
+     * @return Path to the thumbnail, or null if it is not cached
+     */
+    @Nullable
+    public static Path findCachedThumbnail(String url) {
+        String urlHash = getCacheKey(url);
+        Path cachedFile = CacheLayout.getFile(urlHash, "jpg");
+        if (Files.exists(cachedFile) || CacheMigrator.migrateFile(urlHash, "jpg")
+                || (adoptLegacyFiles(url, urlHash) && Files.exists(cachedFile))) {
+            return cachedFile;
+        }
+        return null;
+    }
+
     /**
      * Downloads video thumbnail/album art
      * @param url The URL to get thumbnail from
@@ -462,16 +999,18 @@ public class YtDlpDownloader {
      */
     @Nullable
     public static Path downloadThumbnail(String url, @Nullable DownloadProgressListener progressListener) throws IOException {
+        Path thumbnail = findCachedThumbnail(url);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
         YtDlpManager.ensureInstalled(progressListener);
 
-        Path cachedFile = getCachedPath(url, "jpg");
+        String urlHash = getCacheKey(url);
+        Path cachedFile = CacheLayout.getFile(urlHash, "jpg");
 
-        if (Files.exists(cachedFile)) {
-            return cachedFile;
-        }
-
-        String urlHash = hashUrl(url);
-        String outputTemplate = CACHE_DIR.resolve(urlHash).toString() + ".%(ext)s";
+        Path jobDir = openJobDir(urlHash + "-thumb");
+        Path stagedFile = jobDir.resolve(urlHash + ".jpg");
+        String outputTemplate = jobDir.resolve(urlHash).toString() + ".%(ext)s";
 
         List<String> args = new ArrayList<>();
         args.add("--write-thumbnail");
@@ -486,11 +1025,15 @@ public class YtDlpDownloader {
         try {
             YtDlpManager.execute(args, 30);
 
-            if (Files.exists(cachedFile)) {
+            if (Files.exists(stagedFile)) {
+                moveAtomically(stagedFile, cachedFile);
+                addToIndex(url, urlHash, cachedFile, false);
                 return cachedFile;
             }
         } catch (IOException e) {
             // Thumbnail download failed, not critical
+        } finally {
+            CacheLayout.deleteRecursively(jobDir);
         }
 
         return null;
@@ -511,25 +1054,77 @@ public class YtDlpDownloader {
                         }
                     });
         }
+        cacheIndex.clear();
+        MetadataCache.clear();
     }
 
     /**
      * Clears cache for a specific URL
      */
     public static void clearCacheForUrl(String url) throws IOException {
-        String hash = hashUrl(url);
+        Set<String> hashes = new HashSet<>();
+        hashes.add(hashUrl(url));
+        String mediaId = MediaKeys.resolve(url);
+        if (mediaId != null) {
+            hashes.add(hashUrl(mediaId));
+        }
 
-        // Delete all files with this hash
-        try (var files = Files.list(CACHE_DIR)) {
-            files.filter(f -> f.getFileName().toString().startsWith(hash))
-                    .forEach(path -> {
-                        try {
-                            Files.delete(path);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
+        // Delete all files of the media and legacy key, in every transcode profile
+        for (String hash : hashes) {
+            for (TranscodeProfile profile : TranscodeProfile.values()) {
+                String key = hash + profile.getKeySuffix();
+                for (CacheIndex.Entry entry : cacheIndex.getByKey(key)) {
+                    deleteCacheFile(entry.file());
+                }
+                cleanupPartialDownload(key);
+            }
         }
+        MetadataCache.invalidate(url);
+    }
+
+    /**
+     * Result of a cache cleanup
+     * @param files Number of files deleted
+     * @param bytes Bytes freed
+     */
+    public record CleanupResult(int files, long bytes) {
+    }
+
+    /**
+     * Deletes cached files that have not been used for the given number of days
+     */
+    public static CleanupResult clearOldCache(int daysOld) {
+        long cutoff = System.currentTimeMillis() - daysOld * 24L * 60 * 60 * 1000;
+        int deleted = 0;
+        long freed = 0;
+
+        for (CacheIndex.Entry entry : cacheIndex.getEntries()) {
+            if (entry.lastAccess() < cutoff) {
+                freed += deleteCacheFile(entry.file());
+                deleted++;
+            }
+        }
+        return new CleanupResult(deleted, freed);
+    }
+
+    /**
+     * Gets the number of cached songs
+     */
+    public static int countCachedFiles() {
+        int count = 0;
+        for (CacheIndex.Entry entry : cacheIndex.getEntries()) {
+            if (SUPPORTED_FORMATS.contains(entry.format())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the index of cached files
+     */
+    public static CacheIndex getCacheIndex() {
+        return cacheIndex;
     }
 
     /**
@@ -543,19 +1138,6 @@ public class YtDlpDownloader {
      * Gets the total size of cached files in bytes
      */
     public static long getCacheSize() throws IOException {
-        if (!Files.exists(CACHE_DIR)) {
-            return 0;
-        }
-
-        return Files.walk(CACHE_DIR)
-                .filter(Files::isRegularFile)
-                .mapToLong(path -> {
-                    try {
-                        return Files.size(path);
-                    } catch (IOException e) {
-                        return 0;
-                    }
-                })
-                .sum();
+        return cacheIndex.getTotalBytes();
     }
 }
\ No newline at end of file
@@ -2,21 +2,32 @@ package com.psprofi.etchedytdlp.YouTube;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.psprofi.etchedytdlp.core.AudioMetrics;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
 import net.minecraft.network.chat.Component;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 /**
  * Manages yt-dlp binary installation and execution
@@ -30,6 +41,9 @@ public class YtDlpManager {
     private static final Path FFMPEG_PATH = TOOLS_DIR.resolve(getExecutableName("ffmpeg"));
     private static final Path FFPROBE_PATH = TOOLS_DIR.resolve(getExecutableName("ffprobe"));
 
+    // yt-dlp and ffmpeg processes of running jobs, Java does not stop child processes when the server exits
+    private static final Set<Process> runningProcesses = ConcurrentHashMap.newKeySet();
+
     private static boolean initialized = false;
 
     private static String getExecutableName(String baseName) {
@@ -195,15 +209,27 @@ public class YtDlpManager {
      * Executes yt-dlp with given arguments and returns the output
      */
     public static String execute(List<String> args, int timeoutSeconds) throws IOException {
-        List<String> command = new ArrayList<>();
-        command.add(YTDLP_PATH.toString());
-        addAntiBlockingArgs(command);
-        command.addAll(args);
+        return execute(args, timeoutSeconds, false);
+    }
 
-        ProcessBuilder pb = new ProcessBuilder(command);
-        pb.redirectErrorStream(false);
+    /**
+     * Executes yt-dlp with given arguments and returns the output
+     * @param warm Whether to use a worker started ahead of time (see {@link YtDlpWorkerPool}), for
+     *             lookups that run often with the same arguments; the URL must be the last argument
+     */
+    private static String execute(List<String> args, int timeoutSeconds, boolean warm) throws IOException {
+        List<String> command = buildCommand(args);
 
-        Process process = pb.start();
+        Process process;
+        if (warm) {
+            process = track(YtDlpWorkerPool.launch(command));
+        } else {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(false);
+            process = track(pb.start());
+        }
+        long startNanos = System.nanoTime();
+        boolean success = false;
 
         StringBuilder output = new StringBuilder();
         StringBuilder error = new StringBuilder();
@@ -225,14 +251,32 @@ public class YtDlpManager {
             if (process.exitValue() != 0) {
                 throw new IOException("yt-dlp failed: " + error.toString());
             }
+            success = true;
         } catch (InterruptedException e) {
             process.destroy();
             throw new IOException("yt-dlp process interrupted", e);
+        } finally {
+            AudioMetrics.recordProcess("yt-dlp", System.nanoTime() - startNanos, success);
         }
 
         return output.toString();
     }
 
+    private static List<String> buildCommand(List<String> args) {
+        List<String> command = new ArrayList<>();
+        command.add(YTDLP_PATH.toString());
+        addAntiBlockingArgs(command);
+        command.addAll(args);
+        return command;
+    }
+
+    /**
+     * Starts the pool of yt-dlp workers, with metadata lookups warmed up right away
+     */
+    public static void startWorkers() {
+        YtDlpWorkerPool.start(List.of(buildCommand(getInfoArgs(true))));
+    }
+
     /**
      * Adds common anti-blocking arguments to command
      */
@@ -264,62 +308,464 @@ public class YtDlpManager {
 
     /**
      * Executes yt-dlp with progress monitoring
+     * @return The lines yt-dlp wrote to stdout (e.g. values requested with --print)
+     */
+    public static List<String> executeWithProgress(List<String> args, int timeoutSeconds, @Nullable DownloadProgressListener progressListener) throws IOException {
+        return executeWithProgress(args, timeoutSeconds, new DownloadProgress(progressListener));
+    }
+
+    /**
+     * Executes yt-dlp with progress monitoring
+     * @param progress Gets the progress and metadata lines (they are not returned)
+     * @return The lines yt-dlp wrote to stdout (e.g. values requested with --print)
      */
-    public static void executeWithProgress(List<String> args, int timeoutSeconds, @Nullable DownloadProgressListener progressListener) throws IOException {
+    public static List<String> executeWithProgress(List<String> args, int timeoutSeconds, DownloadProgress progress) throws IOException {
         List<String> command = new ArrayList<>();
         command.add(YTDLP_PATH.toString());
         addAntiBlockingArgs(command);
+        DownloadProgress.addArgs(command);
         command.addAll(args);
 
         ProcessBuilder pb = new ProcessBuilder(command);
         pb.redirectErrorStream(false);
 
-        Process process = pb.start();
+        Process process = track(pb.start());
+        long startNanos = System.nanoTime();
+        boolean success = false;
 
         StringBuilder error = new StringBuilder();
+        Thread errorDrain = drainAsync(process, error, "yt-dlp", progress);
+        List<String> output = new ArrayList<>();
 
-        try (BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
             String line;
-            while ((line = errorReader.readLine()) != null) {
-                error.append(line).append("\n");
-
-                // Parse progress for user feedback
-                if (progressListener != null && line.contains("[download]") && line.contains("%")) {
-                    // Could parse percentage here and update progress
+            while ((line = reader.readLine()) != null) {
+                if (!progress.accept(line)) {
+                    output.add(line);
                 }
             }
 
-            process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("yt-dlp download timed out after " + timeoutSeconds + " seconds");
+            }
+            errorDrain.join(1000);
 
             if (process.exitValue() != 0) {
                 throw new IOException("yt-dlp download failed: " + error.toString());
             }
+            success = true;
+            progress.finish();
         } catch (InterruptedException e) {
             process.destroy();
             throw new IOException("yt-dlp process interrupted", e);
+        } finally {
+            AudioMetrics.recordProcess("yt-dlp", System.nanoTime() - startNanos, success);
         }
+        return output;
+    }
+
+    /**
+     * Runs yt-dlp with its output piped straight into ffmpeg's stdin
+     * yt-dlp must be given "-o -" and ffmpeg must read from "pipe:0"
+     * @param ytdlpArgs yt-dlp arguments (anti-blocking args are added automatically)
+     * @param ffmpegArgs ffmpeg arguments
+     * @param timeoutSeconds Maximum time for the whole pipeline
+     * @param cancelled Polled while waiting, the pipeline is killed when it returns true
+     * @param progress Gets yt-dlp's progress updates, or null
+     */
+    public static void executePipeline(List<String> ytdlpArgs, List<String> ffmpegArgs, int timeoutSeconds,
+                                       BooleanSupplier cancelled, @Nullable DownloadProgress progress) throws IOException {
+        List<String> ytdlpCommand = new ArrayList<>();
+        ytdlpCommand.add(YTDLP_PATH.toString());
+        addAntiBlockingArgs(ytdlpCommand);
+        if (progress != null) {
+            DownloadProgress.addArgs(ytdlpCommand);
+        }
+        ytdlpCommand.addAll(ytdlpArgs);
+
+        List<String> ffmpegCommand = new ArrayList<>();
+        ffmpegCommand.add(FFMPEG_PATH.toString());
+        ffmpegCommand.addAll(ffmpegArgs);
+
+        List<Process> processes = ProcessBuilder.startPipeline(List.of(
+                new ProcessBuilder(ytdlpCommand), new ProcessBuilder(ffmpegCommand)));
+        Process ytdlp = track(processes.get(0));
+        Process ffmpeg = track(processes.get(1));
+        long startNanos = System.nanoTime();
+
+        // Drain stderr of both so neither blocks on a full pipe
+        StringBuilder ytdlpError = new StringBuilder();
+        StringBuilder ffmpegError = new StringBuilder();
+        Thread ytdlpDrain = drainAsync(ytdlp, ytdlpError, "yt-dlp", progress);
+        Thread ffmpegDrain = drainAsync(ffmpeg, ffmpegError, "ffmpeg", null);
+
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        try {
+            while (!ffmpeg.waitFor(250, TimeUnit.MILLISECONDS)) {
+                if (cancelled.getAsBoolean()) {
+                    ytdlp.destroyForcibly();
+                    ffmpeg.destroyForcibly();
+                    throw new IOException("Pipeline cancelled");
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    ytdlp.destroyForcibly();
+                    ffmpeg.destroyForcibly();
+                    throw new IOException("Pipeline timed out after " + timeoutSeconds + " seconds");
+                }
+            }
+            // ffmpeg exits once its input closes, yt-dlp should already be done
+            if (!ytdlp.waitFor(10, TimeUnit.SECONDS)) {
+                ytdlp.destroyForcibly();
+            }
+            ytdlpDrain.join(1000);
+            ffmpegDrain.join(1000);
+        } catch (InterruptedException e) {
+            ytdlp.destroyForcibly();
+            ffmpeg.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline interrupted", e);
+        } finally {
+            // Both ran for the length of the pipeline
+            long elapsed = System.nanoTime() - startNanos;
+            AudioMetrics.recordProcess("yt-dlp", elapsed, !ytdlp.isAlive() && ytdlp.exitValue() == 0);
+            AudioMetrics.recordProcess("ffmpeg", elapsed, !ffmpeg.isAlive() && ffmpeg.exitValue() == 0);
+        }
+
+        if (ytdlp.exitValue() != 0) {
+            throw new IOException("yt-dlp failed: " + ytdlpError);
+        }
+        if (ffmpeg.exitValue() != 0) {
+            throw new IOException("ffmpeg failed with exit code " + ffmpeg.exitValue() + ": " + ffmpegError);
+        }
+        if (progress != null) {
+            progress.finish();
+        }
+    }
+
+    /**
+     * Where a relayed pipeline writes the media
+     * @param file Output file
+     * @param ffmpegArgs ffmpeg arguments reading "pipe:0" and writing the file, or null to write the bytes unchanged
+     */
+    public record PipelineOutput(Path file, @Nullable List<String> ffmpegArgs) {
+    }
+
+    /**
+     * Thrown by {@link #executeRelayPipeline} when yt-dlp cannot write the selected media to stdout
+     * (some downloaders and formats only write files); a file download still works for these
+     */
+    public static class StdoutUnsupportedException extends IOException {
+        public StdoutUnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Runs yt-dlp with "-o -" and relays its output, so the target can be chosen after
+     * seeing the first bytes of the media: either an ffmpeg transcode, or a plain copy
+     * when the stream can be stored as it is. Either way the media hits the disk once.
+     * @param ytdlpArgs yt-dlp arguments (anti-blocking args are added automatically)
+     * @param chooseOutput Gets the first bytes of the media (up to 4 KB) and picks the output
+     * @param timeoutSeconds Maximum time for the whole pipeline
+     * @param cancelled Polled while waiting, the pipeline is killed when it returns true
+     * @param progress Gets yt-dlp's progress updates, or null
+     * @return The output that was chosen
+     * @throws StdoutUnsupportedException If yt-dlp wrote nothing to stdout because it cannot for this media
+     */
+    public static PipelineOutput executeRelayPipeline(List<String> ytdlpArgs, Function<byte[], PipelineOutput> chooseOutput,
+                                                      int timeoutSeconds, BooleanSupplier cancelled,
+                                                      @Nullable DownloadProgress progress) throws IOException {
+        List<String> ytdlpCommand = new ArrayList<>();
+        ytdlpCommand.add(YTDLP_PATH.toString());
+        addAntiBlockingArgs(ytdlpCommand);
+        if (progress != null) {
+            DownloadProgress.addArgs(ytdlpCommand);
+        }
+        ytdlpCommand.addAll(ytdlpArgs);
+
+        Process ytdlp = track(new ProcessBuilder(ytdlpCommand).start());
+        long startNanos = System.nanoTime();
+        StringBuilder ytdlpError = new StringBuilder();
+        StringBuilder ffmpegError = new StringBuilder();
+        Thread ytdlpDrain = drainAsync(ytdlp, ytdlpError, "yt-dlp", progress);
+
+        AtomicReference<Process> ffmpegRef = new AtomicReference<>();
+        AtomicReference<PipelineOutput> outputRef = new AtomicReference<>();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        AtomicLong ffmpegStartNanos = new AtomicLong();
+
+        Thread relay = new Thread(() -> {
+            try (InputStream media = ytdlp.getInputStream()) {
+                byte[] header = media.readNBytes(4096);
+                if (header.length == 0) {
+                    return; // yt-dlp failed before writing anything, its exit code tells why
+                }
+                PipelineOutput output = chooseOutput.apply(header);
+                outputRef.set(output);
+
+                OutputStream sink;
+                if (output.ffmpegArgs() == null) {
+                    sink = Files.newOutputStream(output.file());
+                } else {
+                    List<String> ffmpegCommand = new ArrayList<>();
+                    ffmpegCommand.add(FFMPEG_PATH.toString());
+                    ffmpegCommand.addAll(output.ffmpegArgs());
+                    ffmpegStartNanos.set(System.nanoTime());
+                    Process ffmpeg = track(new ProcessBuilder(ffmpegCommand)
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                            .start());
+                    ffmpegRef.set(ffmpeg);
+                    drainAsync(ffmpeg, ffmpegError, "ffmpeg", null);
+                    sink = ffmpeg.getOutputStream();
+                }
+                try (sink) {
+                    sink.write(header);
+                    media.transferTo(sink);
+                }
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        }, "etchedytdlp-pipeline-relay");
+        relay.setDaemon(true);
+        relay.start();
+
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        boolean success = false;
+        try {
+            while (true) {
+                relay.join(250);
+                Process ffmpeg = ffmpegRef.get();
+                if (!relay.isAlive() && (ffmpeg == null || ffmpeg.waitFor(250, TimeUnit.MILLISECONDS))) {
+                    break;
+                }
+                if (cancelled.getAsBoolean()) {
+                    destroyPipeline(ytdlp, ffmpegRef.get());
+                    throw new IOException("Pipeline cancelled");
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    destroyPipeline(ytdlp, ffmpegRef.get());
+                    throw new IOException("Pipeline timed out after " + timeoutSeconds + " seconds");
+                }
+            }
+            if (!ytdlp.waitFor(10, TimeUnit.SECONDS)) {
+                ytdlp.destroyForcibly();
+            }
+            ytdlpDrain.join(1000);
+
+            if (ytdlp.exitValue() != 0) {
+                if (outputRef.get() == null && isStdoutUnsupported(ytdlpError)) {
+                    throw new StdoutUnsupportedException("yt-dlp cannot write this media to stdout: " + ytdlpError);
+                }
+                throw new IOException("yt-dlp failed: " + ytdlpError);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (outputRef.get() == null) {
+                // Succeeded without writing to stdout, the downloader wrote the media somewhere else
+                throw new StdoutUnsupportedException("yt-dlp produced no output");
+            }
+            Process ffmpeg = ffmpegRef.get();
+            if (ffmpeg != null && ffmpeg.exitValue() != 0) {
+                throw new IOException("ffmpeg failed with exit code " + ffmpeg.exitValue() + ": " + ffmpegError);
+            }
+            success = true;
+            if (progress != null) {
+                progress.finish();
+            }
+            return outputRef.get();
+        } catch (InterruptedException e) {
+            destroyPipeline(ytdlp, ffmpegRef.get());
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline interrupted", e);
+        } finally {
+            AudioMetrics.recordProcess("yt-dlp", System.nanoTime() - startNanos, success || !ytdlp.isAlive() && ytdlp.exitValue() == 0);
+            Process ffmpeg = ffmpegRef.get();
+            if (ffmpeg != null) {
+                AudioMetrics.recordProcess("ffmpeg", System.nanoTime() - ffmpegStartNanos.get(), success);
+            }
+        }
+    }
+
+    /**
+     * Checks yt-dlp's error output for a downloader or format refusing to write to stdout
+     */
+    private static boolean isStdoutUnsupported(CharSequence error) {
+        String text;
+        synchronized (error) {
+            text = error.toString();
+        }
+        for (String line : text.toLowerCase(Locale.ROOT).split("\n")) {
+            if (line.contains("stdout") && (line.contains("support") || line.contains("cannot") || line.contains("can't"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remembers a process of a running job until it exits, see {@link #killRunning()}
+     */
+    static Process track(Process process) {
+        runningProcesses.add(process);
+        process.onExit().thenRun(() -> runningProcesses.remove(process));
+        return process;
+    }
+
+    /**
+     * Kills the yt-dlp and ffmpeg processes of all running jobs, with their children (e.g. yt-dlp's ffmpeg)
+     * Called when the server stops: a download that does not poll for cancellation would outlive it otherwise.
+     */
+    public static void killRunning() {
+        int killed = 0;
+        for (Process process : runningProcesses) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            killed++;
+        }
+        if (killed > 0) {
+            System.out.println("[Etched YT-DLP] Stopped " + killed + " running yt-dlp/ffmpeg process(es)");
+        }
+    }
+
+    private static void destroyPipeline(Process ytdlp, @Nullable Process ffmpeg) {
+        ytdlp.destroyForcibly();
+        if (ffmpeg != null) {
+            ffmpeg.destroyForcibly();
+        }
+    }
+
+    /**
+     * Reads a process' stderr on a daemon thread, keeping it for error messages
+     * @param progress Gets the progress lines (they are not kept), or null
+     */
+    private static Thread drainAsync(Process process, StringBuilder sink, String name, @Nullable DownloadProgress progress) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (progress != null && progress.accept(line)) {
+                        continue;
+                    }
+                    synchronized (sink) {
+                        sink.append(line).append("\n");
+                    }
+                }
+            } catch (IOException ignored) {
+                // Process was killed
+            }
+        }, "etchedytdlp-" + name + "-stderr");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
     }
 
     /**
      * Gets video/audio information as JSON
+     * Answered from the {@link MetadataCache} when the track was looked up before.
      */
     public static JsonObject getInfo(String url, boolean noPlaylist) throws IOException {
+        return MetadataCache.get(url, noPlaylist, () -> fetchInfo(url, noPlaylist));
+    }
+
+    private static JsonObject fetchInfo(String url, boolean noPlaylist) throws IOException {
+        List<String> args = getInfoArgs(noPlaylist);
+        args.add(url);
+
+        String output = execute(args, 30, true);
+
+        String jsonOutput = output.trim();
+        if (jsonOutput.isEmpty()) {
+            throw new IOException("No data returned from yt-dlp");
+        }
+
+        JsonObject info = JsonParser.parseString(jsonOutput).getAsJsonObject();
+        MediaKeys.learn(url, info);
+        return info;
+    }
+
+    /**
+     * Gets the arguments of a metadata lookup, without the URL
+     */
+    private static List<String> getInfoArgs(boolean noPlaylist) {
         List<String> args = new ArrayList<>();
         args.add("--dump-json");
         args.add("--no-warnings");
         if (noPlaylist) {
             args.add("--no-playlist");
         }
-        args.add(url);
+        return args;
+    }
+
+    /**
+     * Reads the playback length of a media file with ffprobe
+     * @return Duration in seconds, or -1 if it could not be determined
+     */
+    public static double probeDuration(Path file) {
+        String output = probe(file, "-show_entries", "format=duration");
+        try {
+            return output != null ? Double.parseDouble(output) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        String output = execute(args, 30);
+    /**
+     * Reads the codec of the first audio stream of a media file with ffprobe
+     * @return Codec name as reported by ffmpeg (mp3, vorbis, opus, aac, ...), or null if unknown
+     */
+    @Nullable
+    public static String probeAudioCodec(Path file) {
+        return probe(file, "-select_streams", "a:0", "-show_entries", "stream=codec_name");
+    }
 
-        String jsonOutput = output.trim();
-        if (jsonOutput.isEmpty()) {
-            throw new IOException("No data returned from yt-dlp");
+    /**
+     * Runs ffprobe for a single value
+     * @return The first line of output, or null if ffprobe is missing or failed
+     */
+    @Nullable
+    private static String probe(Path file, String... query) {
+        if (!Files.exists(FFPROBE_PATH)) {
+            return null;
         }
 
-        return JsonParser.parseString(jsonOutput).getAsJsonObject();
+        List<String> command = new ArrayList<>();
+        command.add(FFPROBE_PATH.toString());
+        command.add("-v");
+        command.add("error");
+        command.addAll(Arrays.asList(query));
+        command.add("-of");
+        command.add("default=noprint_wrappers=1:nokey=1");
+        command.add(file.toString());
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+
+        long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            Process process = pb.start();
+            String output;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                output = reader.readLine();
+            }
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return null;
+            }
+            if (process.exitValue() != 0 || output == null || output.isBlank()) {
+                return null;
+            }
+            success = true;
+            return output.trim();
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            AudioMetrics.recordProcess("ffprobe", System.nanoTime() - startNanos, success);
+        }
     }
 
     /**
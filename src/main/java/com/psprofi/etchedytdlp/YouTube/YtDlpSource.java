@@ -2,6 +2,7 @@ package com.psprofi.etchedytdlp.YouTube;
 
 import com.google.gson.JsonObject;
 import com.psprofi.etchedytdlp.core.DownloadTracker;
+import com.psprofi.etchedytdlp.core.GrowingAudioFile;
 import com.psprofi.etchedytdlp.core.LocalAudioServer;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.sound.download.SoundDownloadSource;
@@ -21,6 +22,11 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * YT-DLP based sound source supporting YouTube, SoundCloud, Spotify and 1000+ sites
@@ -34,17 +40,62 @@ public class YtDlpSource implements SoundDownloadSource {
 
     private final Map<String, Boolean> validCache = new WeakHashMap<>();
 
-    // Store download IDs per URL so we can track and cancel them
+    // Store download IDs per URL so we can track and cancel them (the most recent request per URL)
     private static final Map<String, UUID> urlToDownloadId = new ConcurrentHashMap<>();
 
+    // Progressive streaming: hand out the URL while the download is still running
+    private static volatile boolean progressiveStreaming = false;
+    private static volatile long streamingStartBytes = 128 * 1024;
+    private static volatile int streamingStartTimeoutSeconds = 60;
+
+    // Combined resolve: the burn's metadata lookup is answered by a download of the whole track
+    private static volatile boolean combinedResolve = true;
+
+    private static final ExecutorService COMBINED_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "etchedytdlp-combined-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService STREAMING_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "etchedytdlp-streaming-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Enables or disables progressive streaming of tracks that are not cached yet
+     * @param enabled Whether to stream while downloading
+     * @param startBytes How much audio must be encoded before the URL is handed out
+     * @param startTimeoutSeconds How long to wait for those bytes before giving up
+     */
+    public static void configureStreaming(boolean enabled, long startBytes, int startTimeoutSeconds) {
+        progressiveStreaming = enabled;
+        streamingStartBytes = startBytes;
+        streamingStartTimeoutSeconds = startTimeoutSeconds;
+    }
+
+    /**
+     * Enables or disables downloading the audio and thumbnail in the same yt-dlp run that reads a record's metadata
+     */
+    public static void configureCombinedResolve(boolean enabled) {
+        combinedResolve = enabled;
+    }
+
     @Override
     public List<URL> resolveUrl(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
         // Start tracking this download
         UUID downloadId = DownloadTracker.startDownload(url);
         urlToDownloadId.put(url, downloadId);
-
         System.out.println("[Etched YT-DLP] Starting download for URL: " + url + " (ID: " + downloadId + ")");
 
+        // Not cached yet: start playback while the download is still running
+        // (the background task completes the tracking once it ends)
+        // A download started by the burn is joined instead, it is already on its way into the cache
+        if (progressiveStreaming && !YtDlpDownloader.isCached(url) && !DownloadCoalescer.isDownloading(YtDlpDownloader.getCacheKey(url))) {
+            return resolveProgressive(url, progressListener, downloadId);
+        }
+
         try {
             // Check if cancelled before starting
             if (DownloadTracker.isCancelled(downloadId)) {
@@ -52,13 +103,18 @@ public class YtDlpSource implements SoundDownloadSource {
                 throw new IOException("Download was cancelled before starting");
             }
 
-            // SERVER DOWNLOADS THE AUDIO (not each client)
-            Path audioFile = YtDlpDownloader.downloadAudio(url, progressListener, downloadId);
+            // SERVER DOWNLOADS THE AUDIO (not each client), once no matter how many players ask for it
+            // Cache hits skip the queue, new downloads wait for a free slot
+            Path audioFile = DownloadCoalescer.join(YtDlpDownloader.getCacheKey(url), url, downloadId, progressListener,
+                    (workId, publish) -> YtDlpDownloader.isCached(url)
+                            ? YtDlpDownloader.downloadAudio(url, progressListener, workId)
+                            : DownloadScheduler.run(workId, DownloadScheduler.Priority.INTERACTIVE, progressListener,
+                                    () -> YtDlpDownloader.downloadAudio(url, progressListener, workId)));
 
             // Check if download completed successfully (not cancelled)
             if (!DownloadTracker.completeDownload(downloadId)) {
                 System.out.println("[Etched YT-DLP] Download was cancelled during processing: " + url);
-                urlToDownloadId.remove(url);
+                urlToDownloadId.remove(url, downloadId);
                 throw new IOException("Download was cancelled");
             }
 
@@ -69,7 +125,7 @@ public class YtDlpSource implements SoundDownloadSource {
             System.out.println("[Etched YT-DLP] Successfully completed download: " + url);
             System.out.println("[Etched YT-DLP] All players can access: " + httpUrl);
 
-            urlToDownloadId.remove(url);
+            urlToDownloadId.remove(url, downloadId);
 
             // Return the HTTP URL - Etched will use this to create an AudioSource
             // All clients will connect to this same URL and play in sync
@@ -79,11 +135,88 @@ public class YtDlpSource implements SoundDownloadSource {
             // Clean up on error
             System.err.println("[Etched YT-DLP] Download failed: " + e.getMessage());
             DownloadTracker.completeDownload(downloadId);
-            urlToDownloadId.remove(url);
+            urlToDownloadId.remove(url, downloadId);
             throw e;
         }
     }
 
+    /**
+     * Returns a URL that streams the track while it is still downloading. The streaming
+     * download is shared by everyone who asks for the same track at the same time.
+     */
+    private List<URL> resolveProgressive(String url, @Nullable DownloadProgressListener progressListener, UUID downloadId)
+            throws IOException {
+        try {
+            String streamUrl = DownloadCoalescer.join("stream:" + YtDlpDownloader.getCacheKey(url), url, downloadId, progressListener,
+                    (workId, publish) -> DownloadScheduler.run(workId, DownloadScheduler.Priority.INTERACTIVE,
+                            progressListener, () -> streamDownload(url, progressListener, workId, publish)));
+
+            if (!DownloadTracker.completeDownload(downloadId)) {
+                throw new IOException("Download was cancelled");
+            }
+
+            System.out.println("[Etched YT-DLP] Streaming while downloading: " + streamUrl);
+            return Collections.singletonList(new URL(streamUrl));
+        } catch (IOException e) {
+            DownloadTracker.completeDownload(downloadId);
+            throw e;
+        } finally {
+            urlToDownloadId.remove(url, downloadId);
+        }
+    }
+
+    /**
+     * Runs a streaming download. The URL of the growing file is published as soon as the
+     * first few seconds of audio are available, then the download continues until the
+     * file is complete and promoted into the normal cache.
+     */
+    private static String streamDownload(String url, @Nullable DownloadProgressListener progressListener, UUID workId,
+                                         Consumer<String> publish) throws IOException {
+        Path streamFile = YtDlpDownloader.getStreamingPath(url);
+        GrowingAudioFile growing = LocalAudioServer.registerGrowingFile(streamFile);
+
+        Future<Path> download = STREAMING_EXECUTOR.submit(() -> {
+            try {
+                Path audioFile = YtDlpDownloader.downloadAudioStreaming(url, streamFile, progressListener, workId);
+                growing.complete(audioFile);
+                System.out.println("[Etched YT-DLP] Streaming download finished: " + url);
+                return audioFile;
+            } catch (IOException e) {
+                growing.fail();
+                System.err.println("[Etched YT-DLP] Streaming download failed: " + e.getMessage());
+                throw e;
+            }
+        });
+
+        boolean ready;
+        try {
+            ready = growing.awaitBytes(streamingStartBytes, streamingStartTimeoutSeconds * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ready = false;
+        }
+
+        if (ready) {
+            publish.accept(growing.getUrl());
+        } else {
+            // Nothing playable yet, stop the download rather than leave it orphaned
+            DownloadTracker.cancelDownload(workId);
+        }
+
+        try {
+            download.get();
+        } catch (ExecutionException e) {
+            if (!ready) {
+                throw new IOException("Stream did not start in time for " + url);
+            }
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while streaming " + url, e);
+        }
+        return growing.getUrl();
+    }
+
     /**
      * Cancel a download for a specific URL
      * Call this when the record is picked up before loading completes
@@ -106,8 +239,45 @@ public class YtDlpSource implements SoundDownloadSource {
         return downloadId != null && !DownloadTracker.isCancelled(downloadId);
     }
 
+    /**
+     * Starts the download of a track whose metadata is needed, so yt-dlp runs once for the whole record:
+     * the download prints the metadata before it fetches the audio (see {@link MetadataCache#expect}) and
+     * writes the thumbnail, and playing the record later finds the track cached or joins the download.
+     * Only done when a download slot is free, a burn should not wait in the queue for its title.
+     * Also only done when the media ID is known beforehand: for other URLs the printed metadata changes the
+     * cache key while the download runs, and playing the record would not find the download to join.
+     */
+    private static void startCombinedDownload(String url) {
+        if (!combinedResolve || MediaKeys.resolve(url) == null || YtDlpDownloader.isCached(url)
+                || !DownloadScheduler.hasFreeSlot()) {
+            return;
+        }
+        MetadataCache.Expectation expectation = MetadataCache.expect(url);
+        if (expectation == null) {
+            return;
+        }
+
+        System.out.println("[Etched YT-DLP] Downloading while resolving: " + url);
+        String key = YtDlpDownloader.getCacheKey(url);
+        COMBINED_EXECUTOR.execute(() -> {
+            UUID downloadId = DownloadTracker.startDownload(url);
+            try {
+                DownloadCoalescer.join(key, url, downloadId, null,
+                        (workId, publish) -> DownloadScheduler.run(workId, DownloadScheduler.Priority.PREFETCH, null,
+                                () -> YtDlpDownloader.downloadAudio(url, null, workId)));
+            } catch (IOException e) {
+                System.err.println("[Etched YT-DLP] Download while resolving failed: " + e.getMessage());
+            } finally {
+                DownloadTracker.completeDownload(downloadId);
+                MetadataCache.settle(expectation);
+            }
+        });
+    }
+
     @Override
     public List<TrackData> resolveTracks(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
+        startCombinedDownload(url);
+
         // Get video/track information
         JsonObject info = YtDlpManager.getInfo(url, true); // true = no playlist
 
@@ -141,6 +311,12 @@ public class YtDlpSource implements SoundDownloadSource {
     @Override
     public Optional<String> resolveAlbumCover(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager) throws IOException {
         try {
+            // Thumbnail cached by the track's download
+            Path thumbnail = YtDlpDownloader.findCachedThumbnail(url);
+            if (thumbnail != null) {
+                return Optional.of(LocalAudioServer.registerFile(thumbnail));
+            }
+
             JsonObject info = YtDlpManager.getInfo(url, true);
 
             // Try to get thumbnail URL from metadata
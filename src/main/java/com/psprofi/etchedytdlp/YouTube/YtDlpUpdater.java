@@ -58,6 +58,8 @@ public class YtDlpUpdater {
                 Files.exists(YTDLP_PATH_EXE) ? YTDLP_PATH_EXE : null;
 
         if (ytdlpFile != null && Files.exists(ytdlpFile)) {
+            // Idle workers keep the binary open (and locked on Windows)
+            YtDlpWorkerPool.killIdle();
             Files.delete(ytdlpFile);
             System.out.println("[Etched YT-DLP] yt-dlp binary deleted. Will re-download latest version.");
         }
@@ -0,0 +1,272 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps yt-dlp processes started ahead of time, so a lookup does not pay for
+ * unpacking the binary and importing Python modules (around a second)
+ *
+ * yt-dlp cannot take jobs over a long-lived connection: its options are fixed when
+ * it starts and it reads its whole --batch-file before it downloads anything. A
+ * worker is therefore a process started with a job's arguments and "--batch-file -",
+ * which does its startup work and then blocks reading stdin. A job with the same
+ * arguments writes its URL and closes stdin, and the worker is replaced in the
+ * background. Workers are kept per argument list (the last few used ones), are
+ * checked before use and recycled when they get old or the binary changes.
+ *
+ * @author PsProfi
+ */
+public class YtDlpWorkerPool {
+
+    // Argument lists kept warm, the least recently used one is dropped first
+    private static final int MAX_SIGNATURES = 4;
+    private static final long MAINTENANCE_SECONDS = 15;
+    // Workers of an argument list that die unused in a row before it is given up
+    private static final int MAX_FAILED_SPAWNS = 3;
+
+    private static volatile int workersPerSignature = 2;
+    private static volatile long maxAgeMs = TimeUnit.MINUTES.toMillis(10);
+
+    // Guarded by the class lock
+    private static final Map<List<String>, Deque<Worker>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<List<String>, Integer> failedSpawns = new HashMap<>();
+    private static ScheduledExecutorService maintainer;
+
+    /**
+     * A started yt-dlp waiting for its URL
+     * @param binaryModified Modification time of the yt-dlp binary when it was started
+     */
+    private record Worker(Process process, long startedAt, long binaryModified) {
+    }
+
+    /**
+     * Sets the pool size
+     * @param workers Idle workers kept per argument list (0 disables the pool)
+     * @param maxAge Time in ms after which an unused worker is replaced
+     */
+    public static void configure(int workers, long maxAge) {
+        workersPerSignature = Math.max(0, workers);
+        maxAgeMs = Math.max(1000, maxAge);
+        if (workersPerSignature == 0) {
+            killIdle();
+        }
+    }
+
+    /**
+     * Starts the pool (called when the server starts)
+     * @param signatures Argument lists to warm up right away, without the URL
+     */
+    public static synchronized void start(List<List<String>> signatures) {
+        for (List<String> signature : signatures) {
+            idle.computeIfAbsent(List.copyOf(signature), key -> new ArrayDeque<>());
+        }
+        if (maintainer == null) {
+            maintainer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "etchedytdlp-worker-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maintainer.scheduleWithFixedDelay(YtDlpWorkerPool::maintain, 0, MAINTENANCE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the pool and its idle workers (called when the server stops)
+     */
+    public static void stop() {
+        synchronized (YtDlpWorkerPool.class) {
+            if (maintainer != null) {
+                maintainer.shutdownNow();
+                maintainer = null;
+            }
+        }
+        killIdle();
+    }
+
+    /**
+     * Stops all idle workers, e.g. before the binary is replaced; they are started again by the maintenance
+     */
+    public static synchronized void killIdle() {
+        for (Deque<Worker> workers : idle.values()) {
+            for (Worker worker : workers) {
+                worker.process().destroy();
+            }
+            workers.clear();
+        }
+    }
+
+    /**
+     * Starts a yt-dlp command, handing it to a waiting worker with the same arguments if there is one
+     * The argument list is kept warm from now on (while the pool is running).
+     * @param command Full command, ending with the URL
+     */
+    static Process launch(List<String> command) throws IOException {
+        List<String> signature = List.copyOf(command.subList(0, command.size() - 1));
+        String url = command.get(command.size() - 1);
+
+        Worker worker = take(signature);
+        if (worker != null) {
+            try {
+                OutputStream stdin = worker.process().getOutputStream();
+                stdin.write((url + "\n").getBytes(StandardCharsets.UTF_8));
+                stdin.close();
+                return worker.process();
+            } catch (IOException e) {
+                // Died between the check and now, start a fresh one
+                worker.process().destroyForcibly();
+            }
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(false);
+        return pb.start();
+    }
+
+    /**
+     * Takes a healthy idle worker, registering the argument list if it is new
+     */
+    @Nullable
+    private static Worker take(List<String> signature) {
+        Worker taken = null;
+        synchronized (YtDlpWorkerPool.class) {
+            if (maintainer == null || workersPerSignature == 0) {
+                return null;
+            }
+            Deque<Worker> workers = idle.computeIfAbsent(signature, key -> new ArrayDeque<>());
+            trimSignatures();
+            long binaryModified = getBinaryModified();
+            while (!workers.isEmpty()) {
+                Worker worker = workers.pollFirst();
+                if (isHealthy(worker, binaryModified)) {
+                    taken = worker;
+                    failedSpawns.remove(signature);
+                    break;
+                }
+                worker.process().destroy();
+            }
+            maintainer.execute(YtDlpWorkerPool::maintain);
+        }
+        return taken;
+    }
+
+    /**
+     * Drops the least recently used argument lists beyond the limit
+     */
+    private static void trimSignatures() {
+        Iterator<Map.Entry<List<String>, Deque<Worker>>> iterator = idle.entrySet().iterator();
+        while (idle.size() > MAX_SIGNATURES && iterator.hasNext()) {
+            Map.Entry<List<String>, Deque<Worker>> entry = iterator.next();
+            entry.getValue().forEach(worker -> worker.process().destroy());
+            failedSpawns.remove(entry.getKey());
+            iterator.remove();
+        }
+    }
+
+    private static boolean isHealthy(Worker worker, long binaryModified) {
+        return worker.process().isAlive() && System.currentTimeMillis() - worker.startedAt() < maxAgeMs
+                && worker.binaryModified() == binaryModified;
+    }
+
+    /**
+     * Replaces dead and old workers and starts missing ones
+     */
+    private static void maintain() {
+        Path binary = YtDlpManager.getInstallPath();
+        if (!Files.exists(binary)) {
+            return; // Not installed yet
+        }
+        List<List<String>> toStart = new ArrayList<>();
+        synchronized (YtDlpWorkerPool.class) {
+            long binaryModified = getBinaryModified();
+            for (Iterator<Map.Entry<List<String>, Deque<Worker>>> iterator = idle.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<List<String>, Deque<Worker>> entry = iterator.next();
+                Deque<Worker> workers = entry.getValue();
+                for (Iterator<Worker> workerIterator = workers.iterator(); workerIterator.hasNext(); ) {
+                    Worker worker = workerIterator.next();
+                    if (isHealthy(worker, binaryModified)) {
+                        continue;
+                    }
+                    if (!worker.process().isAlive()) {
+                        // Exited on its own, most likely the arguments are not accepted
+                        failedSpawns.merge(entry.getKey(), 1, Integer::sum);
+                    }
+                    worker.process().destroy();
+                    workerIterator.remove();
+                }
+                if (failedSpawns.getOrDefault(entry.getKey(), 0) >= MAX_FAILED_SPAWNS) {
+                    System.err.println("[Etched YT-DLP] yt-dlp workers keep exiting, no longer keeping them ready for: "
+                            + String.join(" ", entry.getKey()));
+                    workers.forEach(worker -> worker.process().destroy());
+                    iterator.remove();
+                    continue;
+                }
+                for (int i = workers.size(); i < workersPerSignature; i++) {
+                    toStart.add(entry.getKey());
+                }
+            }
+        }
+
+        for (List<String> signature : toStart) {
+            Worker worker = spawn(signature);
+            if (worker == null) {
+                continue;
+            }
+            synchronized (YtDlpWorkerPool.class) {
+                Deque<Worker> workers = idle.get(signature);
+                if (workers != null && maintainer != null && workers.size() < workersPerSignature) {
+                    workers.addLast(worker);
+                } else {
+                    worker.process().destroy();
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static Worker spawn(List<String> signature) {
+        List<String> command = new ArrayList<>(signature);
+        command.add("--batch-file");
+        command.add("-");
+        long binaryModified = getBinaryModified();
+        try {
+            // Output stays unread until the worker gets its job, it writes nothing before it has read stdin
+            Process process = new ProcessBuilder(command).start();
+            return new Worker(process, System.currentTimeMillis(), binaryModified);
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to start yt-dlp worker: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static long getBinaryModified() {
+        try {
+            return Files.getLastModifiedTime(YtDlpManager.getInstallPath()).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the number of idle workers (for debugging/monitoring)
+     */
+    public static synchronized int getIdleCount() {
+        return idle.values().stream().mapToInt(Deque::size).sum();
+    }
+}
@@ -0,0 +1,187 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent mapping of audio server file IDs to cached files
+ *
+ * IDs are the content hash of the file, so two different files can never share one
+ * and a file keeps its ID (and URL) across restarts. The mapping is kept in an
+ * append-only log that is read lazily on the first lookup and compacted when it
+ * has collected too many overwritten lines.
+ *
+ * Log format, one entry per line: {@code <id>\t<path>}. An empty path removes the ID.
+ *
+ * @author PsProfi
+ */
+public class AudioFileRegistry {
+
+    private static final int COMPACT_MIN_LINES = 1024;
+
+    private final Path logFile;
+    private final Map<String, Path> entries = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+    private int logLines = 0;
+
+    public AudioFileRegistry(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Creates the registry at its default location (ytdlp_tools/audio_registry.log)
+     */
+    public static AudioFileRegistry createDefault() {
+        return new AudioFileRegistry(Paths.get("ytdlp_tools", "audio_registry.log"));
+    }
+
+    /**
+     * Looks up the file registered under an ID
+     * @return The file, or null if the ID is unknown
+     */
+    public Path get(String fileId) {
+        ensureLoaded();
+        return entries.get(fileId);
+    }
+
+    /**
+     * Registers a file under an ID and persists the mapping
+     */
+    public void put(String fileId, Path filePath) {
+        ensureLoaded();
+        Path previous = entries.put(fileId, filePath);
+        if (filePath.equals(previous)) {
+            return; // Already persisted
+        }
+        append(fileId, filePath.toString());
+    }
+
+    /**
+     * Removes an ID (e.g. when its file was deleted from the cache)
+     */
+    public void remove(String fileId) {
+        ensureLoaded();
+        if (entries.remove(fileId) != null) {
+            append(fileId, "");
+        }
+    }
+
+    /**
+     * Removes every ID of a file (its content hash, and the streaming ID if it was played while downloading)
+     */
+    public void removeFile(Path filePath) {
+        ensureLoaded();
+        for (Map.Entry<String, Path> entry : entries.entrySet()) {
+            if (isSameFile(entry.getValue(), filePath) && entries.remove(entry.getKey(), entry.getValue())) {
+                append(entry.getKey(), "");
+            }
+        }
+    }
+
+    /**
+     * Points every ID of a file to its new location, so URLs handed out before the move keep working
+     */
+    public void moveFile(Path from, Path to) {
+        ensureLoaded();
+        for (Map.Entry<String, Path> entry : entries.entrySet()) {
+            if (isSameFile(entry.getValue(), from) && entries.replace(entry.getKey(), entry.getValue(), to)) {
+                append(entry.getKey(), to.toString());
+            }
+        }
+    }
+
+    private static boolean isSameFile(Path registered, Path filePath) {
+        return registered.toAbsolutePath().normalize().equals(filePath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Gets the number of registered files
+     */
+    public int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            load();
+            loaded = true;
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(logFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logLines++;
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue; // Torn write from a crash, skip it
+                }
+                String fileId = line.substring(0, tab);
+                String path = line.substring(tab + 1);
+                if (path.isEmpty()) {
+                    entries.remove(fileId);
+                } else {
+                    entries.put(fileId, Paths.get(path));
+                }
+            }
+            System.out.println("[Etched YT-DLP] Loaded " + entries.size() + " registered audio file(s)");
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to read audio registry: " + e.getMessage());
+        }
+    }
+
+    private synchronized void append(String fileId, String path) {
+        try {
+            Files.createDirectories(logFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(fileId + "\t" + path);
+                writer.newLine();
+            }
+            logLines++;
+
+            if (logLines > COMPACT_MIN_LINES && logLines > entries.size() * 2) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] Failed to write audio registry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries, dropping IDs whose file no longer exists
+     */
+    private void compact() throws IOException {
+        entries.entrySet().removeIf(entry -> !Files.exists(entry.getValue()));
+        Path temp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Path> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = entries.size();
+    }
+}
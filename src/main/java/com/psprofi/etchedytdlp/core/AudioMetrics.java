@@ -0,0 +1,226 @@
+package com.psprofi.etchedytdlp.core;
+
+import com.psprofi.etchedytdlp.YouTube.DownloadScheduler;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the audio pipeline, exported in Prometheus text format at /metrics
+ *
+ * Everything is a plain in-process counter, cheap enough to update on every request
+ * and every chunk written. Gauges that other classes already track (hot cache,
+ * DownloadTracker) are read when the metrics are rendered.
+ *
+ * @author PsProfi
+ */
+public class AudioMetrics {
+
+    // Upper bounds of the process duration histogram, in seconds
+    private static final double[] DURATION_BUCKETS = {0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600};
+    // Upper bounds of the download throughput histogram, in bytes per second
+    private static final double[] THROUGHPUT_BUCKETS = {64 * 1024, 256 * 1024, 512 * 1024, 1024 * 1024, 2 * 1024 * 1024,
+            5 * 1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024};
+
+    private static final LongAdder bytesServed = new LongAdder();
+    private static final Map<Integer, LongAdder> requestsByStatus = new ConcurrentSkipListMap<>();
+    private static final LongAdder rangeRequests = new LongAdder();
+    private static final LongAdder fullRequests = new LongAdder();
+    private static final AtomicLong activeConnections = new AtomicLong();
+    private static final LongAdder diskCacheHits = new LongAdder();
+    private static final LongAdder diskCacheMisses = new LongAdder();
+    private static final Map<String, ProcessStats> processes = new ConcurrentHashMap<>();
+    private static final LongAdder downloadedBytes = new LongAdder();
+    private static final LongAdder[] throughputBuckets = new LongAdder[THROUGHPUT_BUCKETS.length];
+    private static final LongAdder throughputCount = new LongAdder();
+    private static final LongAdder throughputSum = new LongAdder();
+
+    static {
+        for (int i = 0; i < throughputBuckets.length; i++) {
+            throughputBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Invocation counts and durations of one external tool
+     */
+    private static class ProcessStats {
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[DURATION_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        ProcessStats() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos, boolean success) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+                if (seconds <= DURATION_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+    }
+
+    /**
+     * Records an answered audio request
+     * @param status HTTP status sent
+     */
+    public static void recordRequest(int status) {
+        requestsByStatus.computeIfAbsent(status, s -> new LongAdder()).increment();
+        if (status == 206) {
+            rangeRequests.increment();
+        } else if (status == 200) {
+            fullRequests.increment();
+        }
+    }
+
+    public static void addBytesServed(long bytes) {
+        if (bytes > 0) {
+            bytesServed.add(bytes);
+        }
+    }
+
+    public static void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records whether a requested track was already in the download cache
+     */
+    public static void recordDiskCache(boolean hit) {
+        (hit ? diskCacheHits : diskCacheMisses).increment();
+    }
+
+    /**
+     * Records one run of an external tool
+     * @param tool "yt-dlp" or "ffmpeg"
+     * @param nanos How long the process ran
+     * @param success false if it failed, timed out or was cancelled
+     */
+    public static void recordProcess(String tool, long nanos, boolean success) {
+        processes.computeIfAbsent(tool, t -> new ProcessStats()).record(nanos, success);
+    }
+
+    /**
+     * Records a finished yt-dlp download
+     * @param bytes Bytes fetched from the site
+     * @param bytesPerSecond Average throughput of the job
+     */
+    public static void recordDownloadThroughput(long bytes, double bytesPerSecond) {
+        downloadedBytes.add(bytes);
+        for (int i = 0; i < THROUGHPUT_BUCKETS.length; i++) {
+            if (bytesPerSecond <= THROUGHPUT_BUCKETS[i]) {
+                throughputBuckets[i].increment();
+                break;
+            }
+        }
+        throughputCount.increment();
+        throughputSum.add((long) bytesPerSecond);
+    }
+
+    /**
+     * Renders all metrics in Prometheus text exposition format (version 0.0.4)
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+
+        header(out, "etchedytdlp_bytes_served_total", "counter", "Audio bytes written to clients");
+        out.append("etchedytdlp_bytes_served_total ").append(bytesServed.sum()).append('\n');
+
+        header(out, "etchedytdlp_http_requests_total", "counter", "Audio requests by response status");
+        requestsByStatus.forEach((status, count) ->
+                out.append("etchedytdlp_http_requests_total{status=\"").append(status).append("\"} ").append(count.sum()).append('\n'));
+
+        header(out, "etchedytdlp_http_body_requests_total", "counter", "Audio responses with a body, by range (206) or full file (200)");
+        out.append("etchedytdlp_http_body_requests_total{type=\"range\"} ").append(rangeRequests.sum()).append('\n');
+        out.append("etchedytdlp_http_body_requests_total{type=\"full\"} ").append(fullRequests.sum()).append('\n');
+
+        header(out, "etchedytdlp_active_connections", "gauge", "Open connections (NIO engine) or in-flight exchanges (JDK engine)");
+        out.append("etchedytdlp_active_connections ").append(activeConnections.get()).append('\n');
+
+        HotTrackCache hotCache = LocalAudioServer.getHotTrackCache();
+        header(out, "etchedytdlp_cache_requests_total", "counter", "Cache lookups by cache and result");
+        out.append("etchedytdlp_cache_requests_total{cache=\"disk\",result=\"hit\"} ").append(diskCacheHits.sum()).append('\n');
+        out.append("etchedytdlp_cache_requests_total{cache=\"disk\",result=\"miss\"} ").append(diskCacheMisses.sum()).append('\n');
+        out.append("etchedytdlp_cache_requests_total{cache=\"memory\",result=\"hit\"} ").append(hotCache.getHits()).append('\n');
+        out.append("etchedytdlp_cache_requests_total{cache=\"memory\",result=\"miss\"} ").append(hotCache.getMisses()).append('\n');
+
+        header(out, "etchedytdlp_memory_cache_bytes", "gauge", "Bytes held by the hot track memory cache");
+        out.append("etchedytdlp_memory_cache_bytes ").append(hotCache.getUsedBytes()).append('\n');
+
+        header(out, "etchedytdlp_process_duration_seconds", "histogram", "Run time of yt-dlp and ffmpeg invocations");
+        processes.forEach((tool, stats) -> {
+            long cumulative = 0;
+            for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+                cumulative += stats.buckets[i].sum();
+                out.append("etchedytdlp_process_duration_seconds_bucket{tool=\"").append(tool)
+                        .append("\",le=\"").append(formatDouble(DURATION_BUCKETS[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = stats.count.sum();
+            out.append("etchedytdlp_process_duration_seconds_bucket{tool=\"").append(tool).append("\",le=\"+Inf\"} ").append(count).append('\n');
+            out.append("etchedytdlp_process_duration_seconds_sum{tool=\"").append(tool).append("\"} ")
+                    .append(formatDouble(stats.sumNanos.sum() / 1e9)).append('\n');
+            out.append("etchedytdlp_process_duration_seconds_count{tool=\"").append(tool).append("\"} ").append(count).append('\n');
+        });
+
+        header(out, "etchedytdlp_process_failures_total", "counter", "yt-dlp and ffmpeg invocations that failed, timed out or were cancelled");
+        processes.forEach((tool, stats) ->
+                out.append("etchedytdlp_process_failures_total{tool=\"").append(tool).append("\"} ").append(stats.failures.sum()).append('\n'));
+
+        header(out, "etchedytdlp_download_bytes_total", "counter", "Bytes fetched by yt-dlp");
+        out.append("etchedytdlp_download_bytes_total ").append(downloadedBytes.sum()).append('\n');
+
+        header(out, "etchedytdlp_download_throughput_bytes_per_second", "histogram", "Average throughput of each yt-dlp download");
+        long cumulative = 0;
+        for (int i = 0; i < THROUGHPUT_BUCKETS.length; i++) {
+            cumulative += throughputBuckets[i].sum();
+            out.append("etchedytdlp_download_throughput_bytes_per_second_bucket{le=\"").append(formatDouble(THROUGHPUT_BUCKETS[i]))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        out.append("etchedytdlp_download_throughput_bytes_per_second_bucket{le=\"+Inf\"} ").append(throughputCount.sum()).append('\n');
+        out.append("etchedytdlp_download_throughput_bytes_per_second_sum ").append(throughputSum.sum()).append('\n');
+        out.append("etchedytdlp_download_throughput_bytes_per_second_count ").append(throughputCount.sum()).append('\n');
+
+        header(out, "etchedytdlp_downloads_active", "gauge", "Downloads tracked by DownloadTracker, by state");
+        out.append("etchedytdlp_downloads_active{state=\"running\"} ")
+                .append(DownloadTracker.getActiveDownloadCount() - DownloadTracker.getCancelledDownloadCount()).append('\n');
+        out.append("etchedytdlp_downloads_active{state=\"cancelled\"} ").append(DownloadTracker.getCancelledDownloadCount()).append('\n');
+
+        header(out, "etchedytdlp_download_slots", "gauge", "Downloads holding a scheduler slot or waiting for one");
+        out.append("etchedytdlp_download_slots{state=\"running\"} ").append(DownloadScheduler.getRunningCount()).append('\n');
+        out.append("etchedytdlp_download_slots{state=\"queued\"} ").append(DownloadScheduler.getQueuedCount()).append('\n');
+
+        header(out, "etchedytdlp_downloads_cancelled_total", "counter", "Downloads cancelled since startup");
+        out.append("etchedytdlp_downloads_cancelled_total ").append(DownloadTracker.getTotalCancelled()).append('\n');
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.3f", value).replaceAll("\\.?0+$", "");
+    }
+}
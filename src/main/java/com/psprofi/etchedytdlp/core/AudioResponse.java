@@ -0,0 +1,356 @@
+package com.psprofi.etchedytdlp.core;
+
+import com.psprofi.etchedytdlp.YouTube.YtDlpDownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Response to an /audio/&lt;id&gt; request, decided independently of the server engine
+ *
+ * Both the JDK HttpServer handler and the NIO engine build one of these from the
+ * request and then write it out their own way, so the two engines always follow
+ * the same rules for ranges, validators and HEAD.
+ *
+ * @author PsProfi
+ */
+public class AudioResponse {
+
+    /**
+     * What kind of body follows the headers
+     */
+    public enum Kind {
+        /** Short plain-text message (errors) */
+        TEXT,
+        /** Headers only (304, 416, HEAD) */
+        EMPTY,
+        /** A region of a cached file, from disk or the hot cache */
+        BODY,
+        /** A file that is still being downloaded, sent chunked until it is complete */
+        GROWING
+    }
+
+    private final int status;
+    private final Kind kind;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] text;
+    private Path file;
+    private ByteBuffer buffer;
+    private long start;
+    private long length;
+    private GrowingAudioFile growing;
+
+    private AudioResponse(int status, Kind kind) {
+        this.status = status;
+        this.kind = kind;
+    }
+
+    /**
+     * Decides how to answer a request
+     * @param method HTTP method
+     * @param path Request path (/audio/&lt;id&gt;)
+     * @param requestHeader Looks up a request header by name, returns null if absent
+     */
+    public static AudioResponse plan(String method, String path, Function<String, String> requestHeader) throws IOException {
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        if (!head && !"GET".equalsIgnoreCase(method)) {
+            return text(405, "Method not allowed").header("Allow", "GET, HEAD");
+        }
+
+        String fileId = path.substring(path.lastIndexOf('/') + 1);
+
+        GrowingAudioFile growingFile = LocalAudioServer.lookupGrowingFile(fileId);
+        if (growingFile != null && !growingFile.isComplete()) {
+            return planGrowing(growingFile, head);
+        }
+
+        Path filePath = LocalAudioServer.lookupFile(fileId);
+
+        if (filePath == null || !Files.exists(filePath)) {
+            // File not found
+            return text(404, "File not found");
+        }
+
+        String contentType = getContentType(filePath);
+
+        // Validators: strong ETag from the content hash, plus Last-Modified
+        String etag = "\"" + ContentHash.of(filePath) + "\"";
+        long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+
+        if (isNotModified(requestHeader, etag, lastModified)) {
+            // Client already has these bytes, but it is playing the track again
+            if (!head) {
+                YtDlpDownloader.recordPlayback(filePath);
+            }
+            return new AudioResponse(304, Kind.EMPTY)
+                    .header("ETag", etag)
+                    .header("Last-Modified", formatHttpDate(lastModified))
+                    .header("Cache-Control", "public, max-age=31536000");
+        }
+
+        // HEAD only needs the size, don't touch the hot cache
+        ByteBuffer cached = head ? null : LocalAudioServer.getHotTrackCache().get(filePath);
+        long fileSize = cached != null ? cached.remaining() : Files.size(filePath);
+
+        AudioResponse response;
+        String rangeHeader = requestHeader.apply("Range");
+        if (rangeHeader != null && rangeHeader.startsWith("bytes=") && isRangeValid(requestHeader, etag, lastModified)) {
+            response = planRange(rangeHeader, fileSize);
+        } else {
+            response = new AudioResponse(200, Kind.BODY);
+            response.start = 0;
+            response.length = fileSize;
+        }
+
+        response.header("Content-Type", contentType)
+                .header("Accept-Ranges", "bytes")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Cache-Control", "public, max-age=31536000")
+                .header("ETag", etag)
+                .header("Last-Modified", formatHttpDate(lastModified));
+
+        if (response.kind == Kind.BODY) {
+            if (head) {
+                // Same headers as GET, including the length, but no body
+                AudioResponse headResponse = new AudioResponse(response.status, Kind.EMPTY);
+                headResponse.headers.putAll(response.headers);
+                headResponse.header("Content-Length", String.valueOf(response.length));
+                return headResponse;
+            }
+            response.file = filePath;
+            response.buffer = cached;
+            // Seeks within a track are not new plays
+            if (response.start == 0) {
+                YtDlpDownloader.recordPlayback(filePath);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Parses the Range header: "bytes=0-1023", "bytes=1024-" or "bytes=-500" (last 500 bytes)
+     */
+    static AudioResponse planRange(String rangeHeader, long fileSize) {
+        long start;
+        long end;
+        try {
+            String range = rangeHeader.substring(6).trim();
+            int dash = range.indexOf('-');
+            String first = range.substring(0, dash).trim();
+            String last = range.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                long suffixLength = Long.parseLong(last);
+                start = Math.max(0, fileSize - suffixLength);
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(last), fileSize - 1);
+            }
+        } catch (RuntimeException e) {
+            // Invalid range, send full file
+            AudioResponse full = new AudioResponse(200, Kind.BODY);
+            full.start = 0;
+            full.length = fileSize;
+            return full;
+        }
+
+        // Validate range
+        if (start < 0 || start >= fileSize || start > end) {
+            return new AudioResponse(416, Kind.EMPTY) // Range Not Satisfiable
+                    .header("Content-Range", "bytes */" + fileSize);
+        }
+
+        AudioResponse partial = new AudioResponse(206, Kind.BODY); // Partial Content
+        partial.start = start;
+        partial.length = end - start + 1;
+        return partial.header("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+    }
+
+    /**
+     * Files that are still downloading have no final length or validators yet
+     */
+    private static AudioResponse planGrowing(GrowingAudioFile growingFile, boolean head) {
+        AudioResponse response = new AudioResponse(200, head ? Kind.EMPTY : Kind.GROWING)
+                .header("Content-Type", getContentType(growingFile.getPath()))
+                .header("Accept-Ranges", "none")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Cache-Control", "no-store");
+        response.growing = growingFile;
+        return response;
+    }
+
+    /**
+     * Checks If-None-Match, or If-Modified-Since when no entity tag was sent
+     */
+    private static boolean isNotModified(Function<String, String> requestHeader, String etag, long lastModified) {
+        String ifNoneMatch = requestHeader.apply("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2); // Weak comparison is allowed for If-None-Match
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = requestHeader.apply("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = parseHttpDate(ifModifiedSince);
+            // HTTP dates have second precision
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Checks If-Range: the Range header only applies if the client's copy is still current
+     */
+    static boolean isRangeValid(Function<String, String> requestHeader, String etag, long lastModified) {
+        String ifRange = requestHeader.apply("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            // Strong comparison only
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = parseHttpDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Answers a request for /metrics with the Prometheus text format
+     */
+    public static AudioResponse metrics(String method) {
+        if (!"GET".equalsIgnoreCase(method)) {
+            return text(405, "Method not allowed").header("Allow", "GET");
+        }
+        return text(200, AudioMetrics.render())
+                .header("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .header("Cache-Control", "no-store");
+    }
+
+    /**
+     * Builds a short plain-text response
+     */
+    public static AudioResponse text(int status, String message) {
+        AudioResponse response = new AudioResponse(status, Kind.TEXT);
+        response.text = message.getBytes(StandardCharsets.UTF_8);
+        return response.header("Content-Type", "text/plain; charset=utf-8");
+    }
+
+    private AudioResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Determines content type based on file extension
+     */
+    static String getContentType(Path filePath) {
+        String fileName = filePath.toString().toLowerCase();
+        if (fileName.endsWith(".ogg") || fileName.endsWith(".opus")) {
+            return "audio/ogg";
+        } else if (fileName.endsWith(".m4a")) {
+            return "audio/mp4";
+        } else if (fileName.endsWith(".wav")) {
+            return "audio/wav";
+        } else if (fileName.endsWith(".jpg")) {
+            return "image/jpeg"; // Album covers
+        }
+        return "audio/mpeg"; // Default to MP3
+    }
+
+    /**
+     * Formats a timestamp as an HTTP date (RFC 1123, GMT)
+     */
+    static String formatHttpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    /**
+     * Parses an HTTP date, returns -1 if it is invalid
+     */
+    private static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Response headers, without Content-Length for TEXT/BODY (engines add it)
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public byte[] getText() {
+        return text;
+    }
+
+    /**
+     * The cached file to send (BODY)
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * In-memory copy of the file from the hot cache, or null to read from disk (BODY)
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * First byte of the file to send (BODY)
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Number of bytes to send (BODY)
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * The file being downloaded (GROWING)
+     */
+    public GrowingAudioFile getGrowing() {
+        return growing;
+    }
+}
@@ -0,0 +1,180 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor used by the local audio server to handle requests in parallel
+ *
+ * The pool is bounded in threads and in queue length. When both are full the
+ * exchange is run on the dispatcher thread in "overflow" mode, where the handler
+ * only answers 503 instead of streaming, so the dispatcher is never blocked for long.
+ * The number of requests streaming at the same time is capped separately; requests
+ * over the cap wait for a slot, as Etched fails playback on a 503 instead of retrying.
+ *
+ * @author PsProfi
+ */
+public class AudioServerExecutor {
+
+    /**
+     * How the HTTP server runs its exchanges
+     */
+    public enum Mode {
+        /** Everything on the single HttpServer dispatcher thread (old behaviour) */
+        DISPATCHER,
+        /** Bounded platform thread pool with a bounded queue */
+        POOL,
+        /** One virtual thread per request (Java 21+, falls back to POOL otherwise) */
+        VIRTUAL
+    }
+
+    private static final ThreadLocal<Boolean> OVERFLOW = ThreadLocal.withInitial(() -> false);
+    // How long a request waits for a streaming slot before it gets a 503
+    private static final long SLOT_WAIT_SECONDS = 30;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    private AudioServerExecutor(Mode mode, ExecutorService executor, int maxInFlight) {
+        this.mode = mode;
+        this.executor = executor;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * Creates the executor for the given mode
+     * @param mode Requested mode
+     * @param threads Pool size (POOL mode)
+     * @param queueCapacity Waiting requests before overflow (POOL mode)
+     * @param maxInFlight Maximum requests streaming at the same time
+     */
+    public static AudioServerExecutor create(Mode mode, int threads, int queueCapacity, int maxInFlight) {
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtual = createVirtualExecutor();
+            if (virtual != null) {
+                return new AudioServerExecutor(Mode.VIRTUAL, virtual, maxInFlight);
+            }
+            System.err.println("[Etched YT-DLP] Virtual threads are not available on this Java version, using thread pool");
+            mode = Mode.POOL;
+        }
+
+        if (mode == Mode.DISPATCHER) {
+            return new AudioServerExecutor(Mode.DISPATCHER, null, maxInFlight);
+        }
+
+        int poolSize = Math.max(1, threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new AudioThreadFactory(),
+                new OverflowPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new AudioServerExecutor(Mode.POOL, pool, maxInFlight);
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so the mod still targets Java 17
+     */
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the executor to hand to HttpServer (null means the dispatcher thread)
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Reserves a streaming slot for the current request, waiting for one if all are taken
+     * Overflow requests and DISPATCHER mode run on the dispatcher thread, they never wait.
+     * @return false if no slot became free in time and the request should get a 503
+     */
+    public boolean acquire() {
+        if (OVERFLOW.get()) {
+            return false;
+        }
+        if (mode == Mode.DISPATCHER) {
+            return inFlight.tryAcquire();
+        }
+        try {
+            return inFlight.tryAcquire(SLOT_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Releases a slot reserved with {@link #acquire()}
+     */
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * Stops accepting work and waits briefly for running transfers
+     */
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs rejected exchanges on the dispatcher thread, flagged so the handler only sends a 503
+     */
+    private static class OverflowPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) {
+                return;
+            }
+            OVERFLOW.set(true);
+            try {
+                task.run();
+            } finally {
+                OVERFLOW.remove();
+            }
+        }
+    }
+
+    private static class AudioThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "etchedytdlp-audio-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.psprofi.etchedytdlp.core;
+
+/**
+ * Token-bucket bandwidth shaping for audio transfers
+ *
+ * Every transfer gets its own bucket that refills at the per-client rate, so players
+ * are fed at playback speed plus headroom instead of at line speed. A shared bucket
+ * enforces the global cap, and each transfer's refill rate is limited to its fair
+ * share of that cap (global rate / active transfers) so one fast client cannot
+ * take the whole uplink while others starve.
+ *
+ * A new transfer starts with a full bucket (the burst) so playback begins without delay.
+ *
+ * @author PsProfi
+ */
+public class BandwidthShaper {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // Smallest grant, so shaped transfers move reasonably sized chunks instead of trickling bytes
+    private static final long MIN_GRANT_BYTES = 16 * 1024;
+
+    private volatile long perClientBytesPerSecond;
+    private volatile long burstBytes;
+    private volatile long globalBytesPerSecond;
+
+    // Global bucket and transfer count, guarded by this
+    private double globalTokens;
+    private long globalRefilledAt = System.nanoTime();
+    private int activeTransfers = 0;
+
+    /**
+     * @param perClientBytesPerSecond Rate of a single transfer (0 = unlimited)
+     * @param burstBytes Bytes a transfer may send at full speed before shaping kicks in
+     * @param globalBytesPerSecond Rate of all transfers together (0 = unlimited)
+     */
+    public BandwidthShaper(long perClientBytesPerSecond, long burstBytes, long globalBytesPerSecond) {
+        configure(perClientBytesPerSecond, burstBytes, globalBytesPerSecond);
+    }
+
+    /**
+     * Changes the limits, running transfers pick them up on their next refill
+     */
+    public synchronized void configure(long perClientBytesPerSecond, long burstBytes, long globalBytesPerSecond) {
+        this.perClientBytesPerSecond = Math.max(0, perClientBytesPerSecond);
+        this.burstBytes = Math.max(0, burstBytes);
+        this.globalBytesPerSecond = Math.max(0, globalBytesPerSecond);
+        this.globalTokens = Math.min(globalTokens, globalBurst());
+    }
+
+    /**
+     * Checks if any limit is set
+     */
+    public boolean isEnabled() {
+        return perClientBytesPerSecond > 0 || globalBytesPerSecond > 0;
+    }
+
+    /**
+     * Starts shaping a transfer, the lease must be closed when the transfer ends
+     */
+    public synchronized Lease open() {
+        activeTransfers++;
+        return new Lease();
+    }
+
+    public synchronized int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    /**
+     * The global bucket holds at most a quarter second of traffic, enough to smooth out chunking
+     */
+    private long globalBurst() {
+        return Math.max(4 * MIN_GRANT_BYTES, globalBytesPerSecond / 4);
+    }
+
+    /**
+     * Rate a single transfer may currently use: its own limit, capped by its fair share of the global limit
+     */
+    private long fairRate() {
+        long rate = perClientBytesPerSecond > 0 ? perClientBytesPerSecond : Long.MAX_VALUE;
+        if (globalBytesPerSecond > 0) {
+            rate = Math.min(rate, globalBytesPerSecond / Math.max(1, activeTransfers));
+        }
+        return Math.max(1, rate);
+    }
+
+    private void refillGlobal(long now) {
+        if (globalBytesPerSecond <= 0) {
+            return;
+        }
+        double added = (double) (now - globalRefilledAt) * globalBytesPerSecond / NANOS_PER_SECOND;
+        globalTokens = Math.min(globalBurst(), globalTokens + added);
+        globalRefilledAt = now;
+    }
+
+    /**
+     * Shaping state of one transfer
+     */
+    public class Lease implements AutoCloseable {
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private boolean closed = false;
+
+        private Lease() {
+            this.tokens = capacity(fairRate());
+        }
+
+        /**
+         * Takes as many bytes as may be sent right now, without waiting
+         * @param wanted Bytes the caller would like to send
+         * @return Bytes allowed (0 if the caller has to wait, see {@link #nanosUntilAvailable}).
+         *         Unless the whole request fits, at least a minimum chunk is granted.
+         */
+        public long tryAcquire(long wanted) {
+            if (wanted <= 0 || !isEnabled()) {
+                return wanted;
+            }
+            synchronized (BandwidthShaper.this) {
+                long now = System.nanoTime();
+                refill(now);
+                refillGlobal(now);
+
+                double allowed = Math.min(wanted, tokens);
+                if (globalBytesPerSecond > 0) {
+                    allowed = Math.min(allowed, globalTokens);
+                }
+                long granted = (long) Math.floor(allowed);
+                if (granted <= 0 || granted < Math.min(wanted, MIN_GRANT_BYTES)) {
+                    return 0;
+                }
+                tokens -= granted;
+                if (globalBytesPerSecond > 0) {
+                    globalTokens -= granted;
+                }
+                return granted;
+            }
+        }
+
+        /**
+         * Waits until some bytes may be sent and takes them
+         * @return Bytes allowed, at least 1 and at most wanted
+         */
+        public long acquire(long wanted) throws InterruptedException {
+            while (true) {
+                long granted = tryAcquire(wanted);
+                if (granted > 0) {
+                    return granted;
+                }
+                long waitNanos = nanosUntilAvailable(wanted);
+                Thread.sleep(Math.max(1, waitNanos / 1_000_000));
+            }
+        }
+
+        /**
+         * Gives back bytes that were acquired but not sent (short socket write)
+         */
+        public void refund(long bytes) {
+            if (bytes <= 0 || !isEnabled()) {
+                return;
+            }
+            synchronized (BandwidthShaper.this) {
+                tokens += bytes;
+                if (globalBytesPerSecond > 0) {
+                    globalTokens += bytes;
+                }
+            }
+        }
+
+        /**
+         * Estimates how long until {@link #tryAcquire} will grant something for the given request
+         */
+        public long nanosUntilAvailable(long wanted) {
+            if (!isEnabled()) {
+                return 0;
+            }
+            long bytes = Math.min(wanted, MIN_GRANT_BYTES);
+            synchronized (BandwidthShaper.this) {
+                long now = System.nanoTime();
+                refill(now);
+                refillGlobal(now);
+
+                long wait = 0;
+                double missing = bytes - tokens;
+                if (missing > 0) {
+                    wait = (long) (missing * NANOS_PER_SECOND / fairRate());
+                }
+                if (globalBytesPerSecond > 0 && bytes > globalTokens) {
+                    wait = Math.max(wait, (long) ((bytes - globalTokens) * NANOS_PER_SECOND / globalBytesPerSecond));
+                }
+                return wait;
+            }
+        }
+
+        private void refill(long now) {
+            long rate = fairRate();
+            tokens = Math.min(capacity(rate), tokens + (double) (now - refilledAt) * rate / NANOS_PER_SECOND);
+            refilledAt = now;
+        }
+
+        /**
+         * The bucket holds the burst, or a quarter second of traffic, whichever is larger
+         */
+        private double capacity(long rate) {
+            return Math.max(Math.max(burstBytes, MIN_GRANT_BYTES), rate / 4.0);
+        }
+
+        @Override
+        public void close() {
+            synchronized (BandwidthShaper.this) {
+                if (!closed) {
+                    closed = true;
+                    activeTransfers--;
+                }
+            }
+        }
+    }
+}
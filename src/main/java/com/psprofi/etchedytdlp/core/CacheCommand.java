@@ -12,8 +12,6 @@ import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.text.DecimalFormat;
 
 /**
@@ -55,7 +53,7 @@ public class CacheCommand {
 
         try {
             long cacheSize = YtDlpDownloader.getCacheSize();
-            int fileCount = countCachedFiles();
+            int fileCount = YtDlpDownloader.countCachedFiles();
 
             source.sendSuccess(() -> Component.translatable("etchedytdlp.command.info.title")
                     .withStyle(ChatFormatting.GOLD), false);
@@ -86,7 +84,7 @@ public class CacheCommand {
 
         try {
             long sizeBefore = YtDlpDownloader.getCacheSize();
-            int filesBefore = countCachedFiles();
+            int filesBefore = YtDlpDownloader.countCachedFiles();
 
             source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clear.clearing")
                     .withStyle(ChatFormatting.YELLOW), true);
@@ -118,79 +116,23 @@ public class CacheCommand {
     private static int executeClearOld(CommandContext<CommandSourceStack> context) {
         CommandSourceStack source = context.getSource();
 
-        try {
-            Path cacheDir = YtDlpDownloader.getCacheDirectory();
-            if (!Files.exists(cacheDir)) {
-                source.sendSuccess(() -> Component.translatable("etchedytdlp.command.cache_empty")
-                        .withStyle(ChatFormatting.GRAY), false);
-                return 1;
-            }
-
-            long cutoff = System.currentTimeMillis() - (30L * 24 * 60 * 60 * 1000);
-            int deleted = 0;
-            long freedSize = 0;
-
-            var files = Files.list(cacheDir)
-                    .filter(Files::isRegularFile)
-                    .filter(p -> {
-                        try {
-                            return Files.getLastModifiedTime(p).toMillis() < cutoff;
-                        } catch (IOException e) {
-                            return false;
-                        }
-                    })
-                    .toList();
-
-            for (Path file : files) {
-                try {
-                    long size = Files.size(file);
-                    Files.delete(file);
-                    deleted++;
-                    freedSize += size;
-                } catch (IOException e) {
-                    System.err.println("[Etched YT-DLP] Failed to delete: " + file.getFileName());
-                }
-            }
-
-            if (deleted > 0) {
-                int finalDeleted = deleted;
-                long finalFreedSize = freedSize;
-                source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.success" + finalDeleted)
-                        .withStyle(ChatFormatting.GREEN), true);
-                source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.freed" + formatSize(finalFreedSize))
-                        .withStyle(ChatFormatting.GRAY), false);
-            } else {
-                source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.none")
-                        .withStyle(ChatFormatting.GRAY), false);
-            }
-
-            return 1;
-
-        } catch (IOException e) {
-            source.sendFailure(Component.translatable("etchedytdlp.command.error.clearold" + e.getMessage())
-                    .withStyle(ChatFormatting.RED));
-            return 0;
-        }
-    }
+        YtDlpDownloader.CleanupResult result = YtDlpDownloader.clearOldCache(30);
+        int deleted = result.files();
+        long freedSize = result.bytes();
 
-    /**
-     * Count cached files
-     */
-    private static int countCachedFiles() throws IOException {
-        Path cacheDir = YtDlpDownloader.getCacheDirectory();
-        if (!Files.exists(cacheDir)) {
-            return 0;
+        if (deleted > 0) {
+            int finalDeleted = deleted;
+            long finalFreedSize = freedSize;
+            source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.success" + finalDeleted)
+                    .withStyle(ChatFormatting.GREEN), true);
+            source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.freed" + formatSize(finalFreedSize))
+                    .withStyle(ChatFormatting.GRAY), false);
+        } else {
+            source.sendSuccess(() -> Component.translatable("etchedytdlp.command.clearold.none")
+                    .withStyle(ChatFormatting.GRAY), false);
         }
 
-        return (int) Files.list(cacheDir)
-                .filter(Files::isRegularFile)
-                .filter(p -> {
-                    String name = p.toString().toLowerCase();
-                    return name.endsWith(".mp3") ||
-                            name.endsWith(".ogg") ||
-                            name.endsWith(".wav");
-                })
-                .count();
+        return 1;
     }
 
     /**
@@ -125,7 +125,7 @@ public class CacheManagerScreen extends Screen {
     private void refreshCacheInfo() {
         try {
             cacheSize = YtDlpDownloader.getCacheSize();
-            fileCount = countCachedFiles();
+            fileCount = YtDlpDownloader.countCachedFiles();
 
             System.out.println("[Etched YT-DLP] Cache: " + formatSize(cacheSize) +
                     " (" + fileCount + " files)");
@@ -135,23 +135,6 @@ public class CacheManagerScreen extends Screen {
         }
     }
 
-    /**
-     * Count cached files
-     */
-    private int countCachedFiles() throws IOException {
-        Path cacheDir = YtDlpDownloader.getCacheDirectory();
-        if (!Files.exists(cacheDir)) {
-            return 0;
-        }
-
-        return (int) Files.list(cacheDir)
-                .filter(Files::isRegularFile)
-                .filter(p -> p.toString().endsWith(".mp3") ||
-                        p.toString().endsWith(".ogg") ||
-                        p.toString().endsWith(".wav"))
-                .count();
-    }
-
     /**
      * Clear all cache
      */
@@ -175,43 +158,12 @@ public class CacheManagerScreen extends Screen {
      * Clear old cache files
      */
     private void clearOldCache(int daysOld) {
-        try {
-            System.out.println("[Etched YT-DLP] Clearing cache older than " + daysOld + " days...");
+        System.out.println("[Etched YT-DLP] Clearing cache older than " + daysOld + " days...");
 
-            Path cacheDir = YtDlpDownloader.getCacheDirectory();
-            if (!Files.exists(cacheDir)) {
-                return;
-            }
-
-            long cutoff = System.currentTimeMillis() - (daysOld * 24L * 60 * 60 * 1000);
-            int deleted = 0;
-
-            var files = Files.list(cacheDir)
-                    .filter(Files::isRegularFile)
-                    .filter(p -> {
-                        try {
-                            return Files.getLastModifiedTime(p).toMillis() < cutoff;
-                        } catch (IOException e) {
-                            return false;
-                        }
-                    })
-                    .toList();
-
-            for (Path file : files) {
-                try {
-                    Files.delete(file);
-                    deleted++;
-                } catch (IOException e) {
-                    System.err.println("[Etched YT-DLP] Failed to delete: " + file.getFileName());
-                }
-            }
+        YtDlpDownloader.CleanupResult result = YtDlpDownloader.clearOldCache(daysOld);
 
-            System.out.println("[Etched YT-DLP] Deleted " + deleted + " old file(s)");
-            refreshCacheInfo();
-
-        } catch (IOException e) {
-            System.err.println("[Etched YT-DLP] Failed to clear old cache: " + e.getMessage());
-        }
+        System.out.println("[Etched YT-DLP] Deleted " + result.files() + " old file(s)");
+        refreshCacheInfo();
     }
 
     /**
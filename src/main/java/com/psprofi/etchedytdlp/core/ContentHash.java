@@ -0,0 +1,77 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 content hashes of cached audio files
+ * Hashes are remembered per file and only recomputed when its size or mtime changes
+ *
+ * @author PsProfi
+ */
+public class ContentHash {
+
+    private record Fingerprint(long size, long lastModified, String hash) {
+    }
+
+    private static final Map<Path, Fingerprint> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the content hash of a file as lowercase hex
+     */
+    public static String of(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        Fingerprint known = hashes.get(path);
+        if (known != null && known.size() == size && known.lastModified() == lastModified) {
+            return known.hash();
+        }
+
+        String hash = compute(path);
+        hashes.put(path, new Fingerprint(size, lastModified, hash));
+        return hash;
+    }
+
+    /**
+     * Forgets the remembered hash of a file (e.g. after it was deleted)
+     */
+    public static void forget(Path path) {
+        hashes.remove(path);
+    }
+
+    private static String compute(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
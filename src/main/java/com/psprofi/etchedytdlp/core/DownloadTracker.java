@@ -1,8 +1,12 @@
 package com.psprofi.etchedytdlp.core;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Tracks active downloads to prevent duplicate record spawns when players
@@ -24,6 +28,12 @@ public class DownloadTracker {
     // Maps download ID to context information
     private static final Map<UUID, DownloadContext> activeDownloads = new ConcurrentHashMap<>();
 
+    // Downloads cancelled since startup (for metrics)
+    private static final AtomicLong totalCancelled = new AtomicLong();
+
+    // Notified right after a download is cancelled (e.g. to drop it from a wait queue)
+    private static final List<Consumer<UUID>> cancelListeners = new CopyOnWriteArrayList<>();
+
     /**
      * Context information for a download
      */
@@ -42,7 +52,10 @@ public class DownloadTracker {
         }
 
         public void cancel() {
-            this.cancelled = true;
+            if (!cancelled) {
+                this.cancelled = true;
+                totalCancelled.incrementAndGet();
+            }
         }
 
         public String getUrl() {
@@ -97,9 +110,19 @@ public class DownloadTracker {
             context.cancel();
             System.out.println("[Etched YT-DLP] Cancelled download: " + downloadId +
                     " (was running for " + context.getElapsedTime() + "ms)");
+            for (Consumer<UUID> listener : cancelListeners) {
+                listener.accept(downloadId);
+            }
         }
     }
 
+    /**
+     * Registers a listener that is called with the ID of every cancelled download
+     */
+    public static void addCancelListener(Consumer<UUID> listener) {
+        cancelListeners.add(listener);
+    }
+
     /**
      * Completes a download and removes it from tracking
      * @param downloadId The download ID
@@ -165,6 +188,26 @@ public class DownloadTracker {
         return activeDownloads.size();
     }
 
+    /**
+     * Gets the number of tracked downloads that were cancelled but have not finished yet
+     */
+    public static int getCancelledDownloadCount() {
+        int count = 0;
+        for (DownloadContext context : activeDownloads.values()) {
+            if (context.isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of downloads cancelled since startup
+     */
+    public static long getTotalCancelled() {
+        return totalCancelled.get();
+    }
+
     /**
      * Gets all active download IDs (for debugging)
      */
@@ -192,12 +235,36 @@ public class DownloadTracker {
 
     /**
      * Cancels all active downloads (emergency stop)
+     * Goes through {@link #cancelDownload(UUID)} so the cancel listeners drop queued jobs too.
      */
     public static void cancelAll() {
         System.out.println("[Etched YT-DLP] Cancelling all active downloads...");
-        for (DownloadContext context : activeDownloads.values()) {
-            context.cancel();
+        int count = 0;
+        for (UUID downloadId : activeDownloads.keySet()) {
+            cancelDownload(downloadId);
+            count++;
+        }
+        System.out.println("[Etched YT-DLP] Cancelled " + count + " download(s)");
+    }
+
+    /**
+     * Waits until all tracked downloads have completed (e.g. noticed their cancellation and cleaned up)
+     * @param timeoutMs Maximum time to wait
+     * @return true if no download is tracked anymore
+     */
+    public static boolean awaitIdle(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!activeDownloads.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
-        System.out.println("[Etched YT-DLP] Cancelled " + activeDownloads.size() + " download(s)");
+        return true;
     }
 }
\ No newline at end of file
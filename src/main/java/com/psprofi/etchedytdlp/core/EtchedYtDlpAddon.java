@@ -1,7 +1,10 @@
 package com.psprofi.etchedytdlp.core;
 
+import com.psprofi.etchedytdlp.YouTube.DownloadResumer;
+import com.psprofi.etchedytdlp.YouTube.YtDlpManager;
 import com.psprofi.etchedytdlp.YouTube.YtDlpSource;
 import com.psprofi.etchedytdlp.YouTube.YtDlpUpdater;;
+import com.psprofi.etchedytdlp.YouTube.YtDlpWorkerPool;
 import gg.moonflower.etched.api.sound.download.SoundSourceManager;
 import net.minecraftforge.api.distmarker.Dist;
 import net.minecraftforge.common.MinecraftForge;
@@ -9,7 +12,9 @@ import net.minecraftforge.event.server.ServerStartingEvent;
 import net.minecraftforge.event.server.ServerStoppingEvent;
 import net.minecraftforge.eventbus.api.IEventBus;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
 import net.minecraftforge.fml.event.lifecycle.FMLCommonSetupEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
@@ -23,6 +28,9 @@ public class EtchedYtDlpAddon {
         modEventBus.addListener(this::commonSetup);
         modEventBus.addListener(this::clientSetup);
 
+        // Server tuning options (executor, cache limits, ...)
+        ModLoadingContext.get().registerConfig(ModConfig.Type.COMMON, YtDlpConfig.SPEC);
+
         // Register for server events
         MinecraftForge.EVENT_BUS.register(this);
     }
@@ -57,13 +65,26 @@ public class EtchedYtDlpAddon {
             System.err.println("[Etched YT-DLP] Failed to start local audio server: " + e.getMessage());
             e.printStackTrace();
         }
+
+        // Start yt-dlp processes ahead of time so the first burns skip its startup
+        YtDlpManager.startWorkers();
+
+        // Pick up downloads interrupted by the last shutdown or crash
+        DownloadResumer.resumeInterrupted();
     }
 
     @SubscribeEvent
     public void onServerStopping(ServerStoppingEvent event) {
-        // Cancel all active downloads
+        // Cancel all active downloads, keeping their partial data to resume on the next start
+        // File downloads do not poll for cancellation, so their processes are killed as well
+        DownloadResumer.suspend();
         DownloadTracker.cancelAll();
+        YtDlpManager.killRunning();
+        if (!DownloadTracker.awaitIdle(5000)) {
+            System.err.println("[Etched YT-DLP] " + DownloadTracker.getActiveDownloadCount() + " download(s) did not stop in time");
+        }
         DownloadTracker.clear();
+        YtDlpWorkerPool.stop();
 
         // Stop local HTTP server
         LocalAudioServer.stop();
@@ -0,0 +1,119 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An audio file that is still being written by the download pipeline
+ *
+ * The local audio server streams it to clients while it grows. When the download
+ * finishes the file is promoted to its final cache path and the same URL keeps
+ * working as a normal cached file.
+ *
+ * @author PsProfi
+ */
+public class GrowingAudioFile {
+
+    private final String fileId;
+    private final String url;
+    private volatile Path path;
+    private volatile boolean complete = false;
+    private volatile boolean failed = false;
+
+    GrowingAudioFile(String fileId, String url, Path path) {
+        this.fileId = fileId;
+        this.url = url;
+        this.path = path;
+    }
+
+    /**
+     * Marks the download as finished and switches to the final cached file
+     * @param finalPath Where the finished file now lives
+     */
+    public void complete(Path finalPath) {
+        // Registered first: a request that sees the file complete looks it up in the registry
+        LocalAudioServer.promoteGrowingFile(this, finalPath);
+        synchronized (this) {
+            this.path = finalPath;
+            this.complete = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the download as failed, readers stop and the URL becomes invalid
+     */
+    public void fail() {
+        synchronized (this) {
+            this.failed = true;
+            notifyAll();
+        }
+        LocalAudioServer.removeGrowingFile(this);
+    }
+
+    /**
+     * Waits until at least the given number of bytes were written or the download ended
+     * @return true if enough data is available (or the file is complete)
+     */
+    public boolean awaitBytes(long minBytes, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (complete) {
+                return true;
+            }
+            if (failed) {
+                return false;
+            }
+            if (currentSize() >= minBytes) {
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            awaitChange(Math.min(remaining, 100));
+        }
+    }
+
+    /**
+     * Sleeps until the file is completed/failed or the timeout passes (the writer is an
+     * external process, so growth itself can only be polled)
+     */
+    public synchronized void awaitChange(long timeoutMillis) throws InterruptedException {
+        if (!complete && !failed) {
+            wait(timeoutMillis);
+        }
+    }
+
+    private long currentSize() {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * Gets the HTTP URL clients should use
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,245 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap LRU cache of the most requested audio files
+ *
+ * During events the same few tracks are requested hundreds of times a minute.
+ * Files that were requested often enough are copied once into a direct ByteBuffer
+ * and then served from memory, without a disk read or heap allocation per request.
+ * Total memory is bounded by a byte budget; least recently used tracks are evicted first.
+ *
+ * @author PsProfi
+ */
+public class HotTrackCache {
+
+    private final Object lock = new Object();
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Request counts used for admission, halved every time they add up to the decay period
+    private final Map<Path, Integer> frequencies = new HashMap<>();
+    private final Set<Path> loading = new HashSet<>();
+    private int requestsSinceDecay = 0;
+
+    private long budgetBytes;
+    private long maxEntryBytes;
+    private int admitAfterRequests;
+    private long usedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong admissions = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    private static final int DECAY_PERIOD = 1000;
+
+    /**
+     * A cached track. The buffer is read-only and shared, always use duplicates.
+     */
+    private record Entry(ByteBuffer buffer, long size, long lastModified) {
+    }
+
+    /**
+     * @param budgetBytes Total off-heap memory the cache may hold (0 disables it)
+     * @param maxEntryBytes Largest single file that will be cached
+     * @param admitAfterRequests How many requests a file needs before it is cached
+     */
+    public HotTrackCache(long budgetBytes, long maxEntryBytes, int admitAfterRequests) {
+        configure(budgetBytes, maxEntryBytes, admitAfterRequests);
+    }
+
+    /**
+     * Updates the limits, evicting entries if the new budget is smaller
+     */
+    public void configure(long budgetBytes, long maxEntryBytes, int admitAfterRequests) {
+        synchronized (lock) {
+            this.budgetBytes = Math.max(0, budgetBytes);
+            this.maxEntryBytes = Math.min(Integer.MAX_VALUE, Math.max(0, maxEntryBytes));
+            this.admitAfterRequests = Math.max(1, admitAfterRequests);
+            evictUntilFits(0);
+        }
+    }
+
+    /**
+     * Looks up a file, counting the request towards admission
+     * @param path The audio file being requested
+     * @return A read-only view of the file contents, or null if it should be read from disk
+     */
+    public ByteBuffer get(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            invalidate(path);
+            return null;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (lock) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                if (entry.size() == size && entry.lastModified() == lastModified) {
+                    hits.incrementAndGet();
+                    return entry.buffer().duplicate();
+                }
+                // File changed on disk, drop the stale copy
+                removeEntry(path, entry);
+            }
+
+            misses.incrementAndGet();
+            int frequency = recordRequest(path);
+
+            if (budgetBytes == 0 || size == 0 || size > maxEntryBytes || size > budgetBytes
+                    || frequency < admitAfterRequests || !loading.add(path)) {
+                return null;
+            }
+        }
+
+        // Load outside the lock so other requests keep being served
+        try {
+            ByteBuffer buffer = load(path, size);
+            synchronized (lock) {
+                evictUntilFits(size);
+                entries.put(path, new Entry(buffer, size, lastModified));
+                usedBytes += size;
+                admissions.incrementAndGet();
+                return buffer.duplicate();
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            System.err.println("[Etched YT-DLP] Failed to cache hot track " + path.getFileName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            synchronized (lock) {
+                loading.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Removes a file from the cache (e.g. when it is deleted from disk)
+     */
+    public void invalidate(Path path) {
+        synchronized (lock) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                removeEntry(path, entry);
+            }
+            frequencies.remove(path);
+        }
+    }
+
+    /**
+     * Drops every cached track
+     */
+    public void clear() {
+        synchronized (lock) {
+            entries.clear();
+            frequencies.clear();
+            usedBytes = 0;
+        }
+    }
+
+    private ByteBuffer load(Path path, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("File shrank while caching");
+                }
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private int recordRequest(Path path) {
+        if (++requestsSinceDecay >= DECAY_PERIOD) {
+            // Age the counters so yesterday's hits don't keep a track hot forever
+            requestsSinceDecay = 0;
+            frequencies.replaceAll((key, count) -> count / 2);
+            frequencies.values().removeIf(count -> count == 0);
+        }
+        return frequencies.merge(path, 1, Integer::sum);
+    }
+
+    private void evictUntilFits(long incoming) {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (usedBytes + incoming > budgetBytes && iterator.hasNext()) {
+            Entry victim = iterator.next().getValue();
+            iterator.remove();
+            usedBytes -= victim.size();
+            evictions.incrementAndGet();
+            evictedBytes.addAndGet(victim.size());
+        }
+    }
+
+    private void removeEntry(Path path, Entry entry) {
+        entries.remove(path);
+        usedBytes -= entry.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    public long getUsedBytes() {
+        synchronized (lock) {
+            return usedBytes;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    public long getBudgetBytes() {
+        synchronized (lock) {
+            return budgetBytes;
+        }
+    }
+
+    /**
+     * Short summary for logs and commands
+     */
+    public String describe() {
+        return getEntryCount() + " tracks, " + (getUsedBytes() / (1024 * 1024)) + "/" + (getBudgetBytes() / (1024 * 1024)) + " MB, "
+                + getHits() + " hits, " + getMisses() + " misses, "
+                + getAdmissions() + " admitted, " + getEvictions() + " evicted";
+    }
+}
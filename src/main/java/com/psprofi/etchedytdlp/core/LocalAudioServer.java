@@ -7,8 +7,13 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -19,11 +24,85 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class LocalAudioServer {
 
+    /**
+     * Which HTTP implementation serves the audio files
+     */
+    public enum Engine {
+        /** com.sun.net.httpserver, one thread per active exchange */
+        JDK,
+        /** Selector-based non-blocking server with keep-alive and sendfile transfers */
+        NIO
+    }
+
     public static HttpServer server;
+    private static NioAudioServer nioServer;
+    private static Engine engine = Engine.JDK;
     private static final int PORT = 25565 + 100; // Use port 25665 (Minecraft port + 100)
-    private static final Map<String, Path> fileRegistry = new ConcurrentHashMap<>();
+    private static final AudioFileRegistry fileRegistry = AudioFileRegistry.createDefault();
+    private static final Map<String, GrowingAudioFile> growingFiles = new ConcurrentHashMap<>();
     private static boolean started = false;
 
+    // Request executor settings (see YtDlpConfig)
+    private static AudioServerExecutor.Mode executorMode = AudioServerExecutor.Mode.POOL;
+    private static int executorThreads = 32;
+    private static int executorQueueCapacity = 128;
+    private static int maxInFlightRequests = 96;
+    private static AudioServerExecutor requestExecutor;
+
+    // Off-heap copies of the most requested tracks (see YtDlpConfig)
+    private static final HotTrackCache hotTrackCache = new HotTrackCache(256L * 1024 * 1024, 64L * 1024 * 1024, 3);
+
+    // Per-client and global transfer rate limits (see YtDlpConfig)
+    private static final BandwidthShaper bandwidthShaper = new BandwidthShaper(0, 1024 * 1024, 0);
+
+    /**
+     * Sets how requests are executed. Takes effect the next time the server starts.
+     * @param mode Dispatcher thread, bounded pool or virtual threads
+     * @param threads Pool size for POOL mode
+     * @param queueCapacity Requests allowed to wait for a pool thread
+     * @param maxInFlight Requests allowed to stream at the same time
+     */
+    public static synchronized void configureExecutor(AudioServerExecutor.Mode mode, int threads, int queueCapacity, int maxInFlight) {
+        executorMode = mode;
+        executorThreads = threads;
+        executorQueueCapacity = queueCapacity;
+        maxInFlightRequests = maxInFlight;
+    }
+
+    /**
+     * Selects the server engine. Takes effect the next time the server starts.
+     */
+    public static synchronized void configureEngine(Engine selected) {
+        engine = selected;
+    }
+
+    /**
+     * Sets the limits of the in-memory hot track cache
+     * @param budgetBytes Total off-heap memory for cached tracks (0 disables the cache)
+     * @param maxTrackBytes Largest file that may be cached
+     * @param admitAfterRequests Requests a file needs before it is copied into memory
+     */
+    public static void configureHotCache(long budgetBytes, long maxTrackBytes, int admitAfterRequests) {
+        hotTrackCache.configure(budgetBytes, maxTrackBytes, admitAfterRequests);
+    }
+
+    /**
+     * Sets the bandwidth limits, applies to running transfers as well
+     * @param perClientBytesPerSecond Rate of a single transfer (0 = unlimited)
+     * @param burstBytes Bytes a transfer may send at full speed first, so playback starts quickly
+     * @param globalBytesPerSecond Rate of all transfers together, shared fairly (0 = unlimited)
+     */
+    public static void configureBandwidth(long perClientBytesPerSecond, long burstBytes, long globalBytesPerSecond) {
+        bandwidthShaper.configure(perClientBytesPerSecond, burstBytes, globalBytesPerSecond);
+    }
+
+    /**
+     * Gets the in-memory hot track cache (for stats)
+     */
+    public static HotTrackCache getHotTrackCache() {
+        return hotTrackCache;
+    }
+
     /**
      * Starts the local HTTP server if not already running
      */
@@ -32,14 +111,31 @@ public class LocalAudioServer {
             return;
         }
 
+        if (engine == Engine.NIO) {
+            try {
+                nioServer = new NioAudioServer(new InetSocketAddress("0.0.0.0", PORT), bandwidthShaper);
+                nioServer.start();
+                started = true;
+                System.out.println("[Etched YT-DLP] Local audio server (NIO) started on http://0.0.0.0:" + PORT);
+                return;
+            } catch (IOException e) {
+                System.err.println("[Etched YT-DLP] Failed to start local server: " + e.getMessage());
+                throw e;
+            }
+        }
+
         try {
             server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
+            requestExecutor = AudioServerExecutor.create(executorMode, executorThreads,
+                    executorQueueCapacity, maxInFlightRequests);
             server.createContext("/audio", new AudioFileHandler());
-            server.setExecutor(null); // Use default executor
+            server.createContext("/metrics", new MetricsHandler());
+            server.setExecutor(requestExecutor.getExecutor()); // null = dispatcher thread
             server.start();
             started = true;
 
-            System.out.println("[Etched YT-DLP] Local audio server started on http://0.0.0.0:" + PORT);
+            System.out.println("[Etched YT-DLP] Local audio server started on http://0.0.0.0:" + PORT +
+                    " (executor: " + requestExecutor.getMode() + ", max in-flight: " + maxInFlightRequests + ")");
         } catch (IOException e) {
             System.err.println("[Etched YT-DLP] Failed to start local server: " + e.getMessage());
             throw e;
@@ -50,10 +146,23 @@ public class LocalAudioServer {
      * Stops the local HTTP server
      */
     public static synchronized void stop() {
-        if (server != null) {
-            server.stop(0);
+        if (server != null || nioServer != null) {
+            if (server != null) {
+                server.stop(0);
+                server = null;
+            }
+            if (nioServer != null) {
+                nioServer.stop();
+                nioServer = null;
+            }
+            if (requestExecutor != null) {
+                requestExecutor.shutdown();
+                requestExecutor = null;
+            }
             started = false;
-            fileRegistry.clear();
+            growingFiles.clear();
+            System.out.println("[Etched YT-DLP] Hot track cache: " + hotTrackCache.describe());
+            hotTrackCache.clear();
             System.out.println("[Etched YT-DLP] Local audio server stopped");
         }
     }
@@ -72,111 +181,270 @@ public class LocalAudioServer {
             throw new IOException("File does not exist: " + filePath);
         }
 
-        // Generate unique ID for the file
-        String fileId = Integer.toHexString(filePath.toString().hashCode());
+        // The content hash is the ID, so URLs stay valid across restarts
+        String fileId = ContentHash.of(filePath);
         fileRegistry.put(fileId, filePath);
 
         return "http://127.0.0.1:" + PORT + "/audio/" + fileId;
     }
 
+    /**
+     * Forgets a file that was deleted from the cache, its URLs stop working
+     */
+    public static void unregisterFile(Path filePath) {
+        fileRegistry.removeFile(filePath);
+    }
+
+    /**
+     * Follows a cached file that was moved, so its URLs keep working
+     */
+    public static void moveFile(Path from, Path to) {
+        fileRegistry.moveFile(from, to);
+    }
+
+    /**
+     * Registers a file that is still being downloaded so clients can start playing early
+     * @param filePath Path the download pipeline is writing to
+     * @return Handle used to complete or fail the file once the download ends
+     */
+    public static GrowingAudioFile registerGrowingFile(Path filePath) throws IOException {
+        if (!started) {
+            start();
+        }
+
+        // Streaming files are named after their cache key, which is unique per track
+        String fileName = filePath.getFileName().toString();
+        int dot = fileName.indexOf('.');
+        String fileId = "live-" + (dot > 0 ? fileName.substring(0, dot) : fileName);
+        GrowingAudioFile growing = new GrowingAudioFile(fileId,
+                "http://127.0.0.1:" + PORT + "/audio/" + fileId, filePath);
+        growingFiles.put(fileId, growing);
+        return growing;
+    }
+
+    /**
+     * Moves a finished growing file into the normal registry, keeping its URL valid
+     */
+    static void promoteGrowingFile(GrowingAudioFile growing, Path finalPath) {
+        fileRegistry.put(growing.getFileId(), finalPath);
+        growingFiles.remove(growing.getFileId(), growing);
+    }
+
+    /**
+     * Drops a growing file whose download failed
+     */
+    static void removeGrowingFile(GrowingAudioFile growing) {
+        growingFiles.remove(growing.getFileId(), growing);
+    }
+
+    /**
+     * Looks up a registered (finished) file by ID
+     */
+    static Path lookupFile(String fileId) {
+        return fileRegistry.get(fileId);
+    }
+
+    /**
+     * Looks up a file that is still being downloaded by ID
+     */
+    static GrowingAudioFile lookupGrowingFile(String fileId) {
+        return growingFiles.get(fileId);
+    }
+
     /**
      * HTTP handler for serving audio files
      */
     public static class AudioFileHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String fileId = path.substring(path.lastIndexOf('/') + 1);
+            AudioMetrics.connectionOpened();
+            try {
+                AudioServerExecutor executor = requestExecutor;
+                if (executor != null && !executor.acquire()) {
+                    // Still saturated after waiting for a slot (or the pool queue is full)
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    send(exchange, AudioResponse.text(503, "Server busy"));
+                    return;
+                }
+
+                try {
+                    AudioResponse response = AudioResponse.plan(exchange.getRequestMethod(),
+                            exchange.getRequestURI().getPath(), exchange.getRequestHeaders()::getFirst);
+                    send(exchange, response);
+                } finally {
+                    if (executor != null) {
+                        executor.release();
+                    }
+                }
+            } finally {
+                AudioMetrics.connectionClosed();
+            }
+        }
 
-            Path filePath = fileRegistry.get(fileId);
+        /**
+         * Writes a planned response to the exchange
+         */
+        private void send(HttpExchange exchange, AudioResponse response) throws IOException {
+            response.getHeaders().forEach(exchange.getResponseHeaders()::set);
+            if (response.getKind() != AudioResponse.Kind.GROWING) {
+                AudioMetrics.recordRequest(response.getStatus()); // Growing files count once they open
+            }
 
-            if (filePath == null || !Files.exists(filePath)) {
-                // File not found
-                String response = "File not found";
-                exchange.sendResponseHeaders(404, response.length());
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+            switch (response.getKind()) {
+                case TEXT -> {
+                    byte[] text = response.getText();
+                    exchange.sendResponseHeaders(response.getStatus(), text.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(text);
+                    }
                 }
-                return;
+                case EMPTY -> {
+                    // HttpServer does not add Content-Length for HEAD, the plan already has it
+                    exchange.sendResponseHeaders(response.getStatus(), -1);
+                    exchange.close();
+                }
+                case BODY -> sendBody(exchange, response);
+                case GROWING -> sendGrowing(exchange, response.getGrowing());
             }
+        }
 
-            // Determine content type based on file extension
-            String contentType = "audio/mpeg"; // Default to MP3
-            String fileName = filePath.toString().toLowerCase();
-            if (fileName.endsWith(".ogg") || fileName.endsWith(".opus")) {
-                contentType = "audio/ogg";
-            } else if (fileName.endsWith(".m4a")) {
-                contentType = "audio/mp4";
-            } else if (fileName.endsWith(".wav")) {
-                contentType = "audio/wav";
-            } else if (fileName.endsWith(".mp3")) {
-                contentType = "audio/mpeg";
+        /**
+         * Sends a region of a cached file, from memory if it is hot, otherwise from disk
+         */
+        private void sendBody(HttpExchange exchange, AudioResponse response) throws IOException {
+            long start = response.getStart();
+            long length = response.getLength();
+
+            ByteBuffer cached = response.getBuffer();
+            if (cached != null) {
+                exchange.sendResponseHeaders(response.getStatus(), length == 0 ? -1 : length);
+                try (OutputStream os = exchange.getResponseBody(); BandwidthShaper.Lease lease = bandwidthShaper.open()) {
+                    writeBuffer(cached, start, length, os, lease);
+                }
+                return;
             }
 
-            // Read file
-            byte[] fileBytes = Files.readAllBytes(filePath);
-
-            // Set headers for audio streaming
-            exchange.getResponseHeaders().set("Content-Type", contentType);
-            exchange.getResponseHeaders().set("Content-Length", String.valueOf(fileBytes.length));
-            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
-            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31536000");
-
-            // Handle range requests (for seeking in audio)
-            String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
-            if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-                handleRangeRequest(exchange, fileBytes, rangeHeader);
-            } else {
-                // Send full file
-                exchange.sendResponseHeaders(200, fileBytes.length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(fileBytes);
-                    os.flush();
+            try (FileChannel channel = FileChannel.open(response.getFile(), StandardOpenOption.READ)) {
+                exchange.sendResponseHeaders(response.getStatus(), length == 0 ? -1 : length);
+                try (OutputStream os = exchange.getResponseBody(); BandwidthShaper.Lease lease = bandwidthShaper.open()) {
+                    transferRange(channel, start, length, os, lease);
                 }
             }
         }
 
         /**
-         * Handle HTTP range requests for audio seeking
+         * Streams a file that is still being written, following it until the download ends.
+         * The final length is unknown, so the response uses chunked transfer and no ranges.
          */
-        private void handleRangeRequest(HttpExchange exchange, byte[] fileBytes, String rangeHeader) throws IOException {
+        private void sendGrowing(HttpExchange exchange, GrowingAudioFile growing) throws IOException {
+            FileChannel channel;
             try {
-                // Parse range: "bytes=0-1023" or "bytes=1024-"
-                String range = rangeHeader.substring(6);
-                String[] parts = range.split("-");
-
-                long start = Long.parseLong(parts[0]);
-                long end = parts.length > 1 && !parts[1].isEmpty()
-                        ? Long.parseLong(parts[1])
-                        : fileBytes.length - 1;
-
-                // Validate range
-                if (start < 0 || start >= fileBytes.length || end >= fileBytes.length || start > end) {
-                    exchange.sendResponseHeaders(416, -1); // Range Not Satisfiable
-                    return;
-                }
+                channel = FileChannel.open(growing.getPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                // Download hasn't created the file yet, or it was just promoted
+                exchange.getResponseHeaders().clear();
+                send(exchange, AudioResponse.text(404, "File not found"));
+                return;
+            }
 
-                long contentLength = end - start + 1;
+            AudioMetrics.recordRequest(200);
+            exchange.sendResponseHeaders(200, 0); // 0 = chunked, length unknown
+            try (channel; OutputStream os = exchange.getResponseBody(); BandwidthShaper.Lease lease = bandwidthShaper.open()) {
+                WritableByteChannel target = Channels.newChannel(os);
+                long position = 0;
+                while (true) {
+                    // Read the state before the size so the last bytes are never missed
+                    boolean done = growing.isComplete();
+                    long available = channel.size();
 
-                // Set partial content headers
-                exchange.getResponseHeaders().set("Content-Range",
-                        "bytes " + start + "-" + end + "/" + fileBytes.length);
-                exchange.sendResponseHeaders(206, contentLength); // Partial Content
+                    if (position < available) {
+                        long allowed = lease.acquire(available - position);
+                        long sent = channel.transferTo(position, allowed, target);
+                        lease.refund(allowed - sent);
+                        position += sent;
+                        AudioMetrics.addBytesServed(sent);
+                        os.flush();
+                    } else if (done) {
+                        break;
+                    } else if (growing.isFailed()) {
+                        // Abort without the final chunk so the client sees an incomplete response
+                        throw new IOException("Download failed while streaming " + growing.getFileId());
+                    } else {
+                        growing.awaitChange(100);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while streaming " + growing.getFileId(), e);
+            }
+        }
 
-                // Send requested range
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(fileBytes, (int) start, (int) contentLength);
-                    os.flush();
+        /**
+         * Streams a region of the file straight from the channel to the response.
+         * Memory use stays fixed no matter how large the file is.
+         */
+        private static void transferRange(FileChannel channel, long position, long count, OutputStream os,
+                                          BandwidthShaper.Lease lease) throws IOException {
+            WritableByteChannel target = Channels.newChannel(os);
+            long end = position + count;
+            while (position < end) {
+                long allowed = acquire(lease, end - position);
+                long sent = channel.transferTo(position, allowed, target);
+                if (sent <= 0) {
+                    // File was truncated underneath us, nothing more to send
+                    break;
                 }
-            } catch (Exception e) {
-                // Invalid range, send full file
-                exchange.sendResponseHeaders(200, fileBytes.length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(fileBytes);
-                    os.flush();
+                lease.refund(allowed - sent);
+                position += sent;
+                AudioMetrics.addBytesServed(sent);
+            }
+            os.flush();
+        }
+
+        /**
+         * Writes a region of an in-memory track to the response
+         */
+        private static void writeBuffer(ByteBuffer buffer, long position, long count, OutputStream os,
+                                        BandwidthShaper.Lease lease) throws IOException {
+            ByteBuffer region = buffer.duplicate();
+            region.position((int) position);
+            WritableByteChannel target = Channels.newChannel(os);
+            long end = position + count;
+            while (region.position() < end) {
+                region.limit((int) (region.position() + acquire(lease, end - region.position())));
+                while (region.hasRemaining()) {
+                    AudioMetrics.addBytesServed(target.write(region));
                 }
             }
+            os.flush();
+        }
+
+        /**
+         * Waits for the bandwidth shaper to allow the next bytes
+         */
+        private static long acquire(BandwidthShaper.Lease lease, long wanted) throws IOException {
+            try {
+                return lease.acquire(wanted);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for bandwidth", e);
+            }
+        }
+    }
+
+    /**
+     * HTTP handler for Prometheus scrapes of /metrics
+     */
+    public static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            AudioResponse response = AudioResponse.metrics(exchange.getRequestMethod());
+            response.getHeaders().forEach(exchange.getResponseHeaders()::set);
+            byte[] text = response.getText();
+            exchange.sendResponseHeaders(response.getStatus(), text.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(text);
+            }
         }
     }
 
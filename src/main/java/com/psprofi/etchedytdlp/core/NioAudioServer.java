@@ -0,0 +1,686 @@
+package com.psprofi.etchedytdlp.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for the local audio server, an alternative to com.sun.net.httpserver
+ *
+ * A single selector thread owns every connection: it parses requests, keeps idle
+ * keep-alive connections open and writes responses whenever a socket can take more.
+ * File bodies go out with FileChannel.transferTo straight into the socket (sendfile
+ * where the OS supports it), so thousands of connections need no thread each.
+ * Deciding a response can block (hashing a new file, loading a hot track), so that
+ * part runs on a small planner pool and the result is handed back to the selector.
+ *
+ * Serves the same /audio/&lt;id&gt; contract as the JDK engine through {@link AudioResponse}.
+ *
+ * @author PsProfi
+ */
+public class NioAudioServer {
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int SEND_BUFFER_BYTES = 256 * 1024;
+    private static final int GROWING_CHUNK_BYTES = 64 * 1024;
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final int PLANNER_THREADS = 2;
+
+    private final InetSocketAddress address;
+    private final BandwidthShaper shaper;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> growingWaiters = new LinkedHashSet<>();
+    private final Map<Connection, Long> throttled = new HashMap<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService planners;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+    private long lastIdleSweep = 0;
+
+    public NioAudioServer(InetSocketAddress address, BandwidthShaper shaper) {
+        this.address = address;
+        this.shaper = shaper;
+    }
+
+    /**
+     * Binds the port and starts the selector thread
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address, 512);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        planners = Executors.newFixedThreadPool(PLANNER_THREADS, task -> {
+            Thread thread = new Thread(task, "etchedytdlp-nio-planner-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        selectorThread = new Thread(this::run, "etchedytdlp-nio-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Closes every connection and stops the selector thread
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (planners != null) {
+            planners.shutdownNow();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(selectTimeout());
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                resumeGrowingWaiters();
+                resumeThrottled();
+                sweepIdleConnections();
+            }
+        } catch (IOException e) {
+            System.err.println("[Etched YT-DLP] NIO audio server failed: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection connection) {
+                connection.close();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_BYTES);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            AudioMetrics.connectionOpened();
+        }
+    }
+
+    /**
+     * Growing files are polled: the writer is an external process, so there is no event for new data
+     */
+    private void resumeGrowingWaiters() {
+        if (growingWaiters.isEmpty()) {
+            return;
+        }
+        List<Connection> waiting = new ArrayList<>(growingWaiters);
+        growingWaiters.clear();
+        for (Connection connection : waiting) {
+            try {
+                connection.onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Selector timeout: wake up for growing files and for the next shaped connection that may send again
+     */
+    private long selectTimeout() {
+        long timeout = 100;
+        long now = System.nanoTime();
+        for (long wakeAt : throttled.values()) {
+            timeout = Math.min(timeout, Math.max(1, (wakeAt - now) / 1_000_000));
+        }
+        return timeout;
+    }
+
+    private void resumeThrottled() {
+        if (throttled.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Connection> due = new ArrayList<>();
+        throttled.forEach((connection, wakeAt) -> {
+            if (wakeAt - now <= 0) {
+                due.add(connection);
+            }
+        });
+        for (Connection connection : due) {
+            throttled.remove(connection);
+            try {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                connection.onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void sweepIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleSweep < 1000) {
+            return;
+        }
+        lastIdleSweep = now;
+
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof Connection connection
+                    && connection.state == State.READING
+                    && now - connection.lastActivity > IDLE_TIMEOUT_MS) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection) {
+                connection.close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ignored) {
+            // Shutting down anyway
+        }
+    }
+
+    private enum State {
+        READING, PLANNING, WRITING
+    }
+
+    /**
+     * One client connection, possibly serving several requests (keep-alive)
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        private SelectionKey key;
+        private State state = State.READING;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean keepAlive;
+        private boolean audioRequest;
+        private boolean closed = false;
+
+        // Current response
+        private BandwidthShaper.Lease lease;
+        private ByteBuffer head;
+        private ByteBuffer memory;
+        private FileChannel file;
+        private long filePosition;
+        private long fileEnd;
+
+        // Current response for a file that is still downloading
+        private GrowingAudioFile growing;
+        private FileChannel growingChannel;
+        private long growingPosition;
+        private boolean chunked;
+        private boolean lastChunkQueued;
+        private ByteBuffer chunk;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            tryParseRequest();
+        }
+
+        /**
+         * Looks for a complete request head in the input buffer and hands it to a planner
+         */
+        private void tryParseRequest() {
+            int end = findHeaderEnd();
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    respondAndClose(AudioResponse.text(431, "Request header too large"));
+                }
+                return;
+            }
+
+            String text = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+            // Keep anything after the head (pipelined requests), GET/HEAD have no body
+            in.flip();
+            in.position(end + 4);
+            in.compact();
+
+            String[] lines = text.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                respondAndClose(AudioResponse.text(400, "Bad request"));
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.putIfAbsent(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String method = requestLine[0];
+            String path = requestLine[1];
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            boolean http11 = requestLine[2].equals("HTTP/1.1");
+            String connectionHeader = headers.getOrDefault("connection", "").toLowerCase();
+            keepAlive = http11 ? !connectionHeader.contains("close") : connectionHeader.contains("keep-alive");
+            chunked = http11;
+
+            state = State.PLANNING;
+            key.interestOps(0);
+
+            String requestPath = path;
+            audioRequest = requestPath.startsWith("/audio/");
+            planners.execute(() -> {
+                AudioResponse response;
+                try {
+                    if (audioRequest) {
+                        response = AudioResponse.plan(method, requestPath, name -> headers.get(name.toLowerCase()));
+                    } else if (requestPath.equals("/metrics")) {
+                        response = AudioResponse.metrics(method);
+                    } else {
+                        response = AudioResponse.text(404, "File not found");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    response = AudioResponse.text(500, "Internal server error");
+                }
+                AudioResponse planned = response;
+                selectorTasks.add(() -> beginResponse(planned));
+                selector.wakeup();
+            });
+        }
+
+        private int findHeaderEnd() {
+            byte[] data = in.array();
+            for (int i = 0; i + 3 < in.position(); i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void respondAndClose(AudioResponse response) {
+            keepAlive = false;
+            chunked = false;
+            beginResponse(response);
+        }
+
+        /**
+         * Serializes the headers and prepares the body source, runs on the selector thread
+         */
+        private void beginResponse(AudioResponse response) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                byte[] body = null;
+                long contentLength = -1;
+
+                switch (response.getKind()) {
+                    case TEXT -> {
+                        body = response.getText();
+                        contentLength = body.length;
+                    }
+                    case EMPTY -> {
+                        if (response.getStatus() != 304 && !response.getHeaders().containsKey("Content-Length")) {
+                            contentLength = 0;
+                        }
+                    }
+                    case BODY -> {
+                        contentLength = response.getLength();
+                        lease = shaper.open();
+                        if (response.getBuffer() != null) {
+                            memory = response.getBuffer().duplicate();
+                            memory.position((int) response.getStart());
+                            memory.limit((int) (response.getStart() + response.getLength()));
+                        } else {
+                            file = FileChannel.open(response.getFile(), StandardOpenOption.READ);
+                            filePosition = response.getStart();
+                            fileEnd = response.getStart() + response.getLength();
+                        }
+                    }
+                    case GROWING -> {
+                        growing = response.getGrowing();
+                        growingChannel = FileChannel.open(growing.getPath(), StandardOpenOption.READ);
+                        lease = shaper.open();
+                        growingPosition = 0;
+                        lastChunkQueued = false;
+                        if (!chunked) {
+                            // HTTP/1.0 has no chunked encoding, the end of the body is the end of the connection
+                            keepAlive = false;
+                        }
+                    }
+                }
+
+                if (audioRequest) {
+                    AudioMetrics.recordRequest(response.getStatus());
+                }
+
+                StringBuilder out = new StringBuilder();
+                out.append("HTTP/1.1 ").append(response.getStatus()).append(' ').append(reason(response.getStatus())).append("\r\n");
+                out.append("Date: ").append(AudioResponse.formatHttpDate(System.currentTimeMillis())).append("\r\n");
+                response.getHeaders().forEach((name, value) -> out.append(name).append(": ").append(value).append("\r\n"));
+                if (contentLength >= 0) {
+                    out.append("Content-Length: ").append(contentLength).append("\r\n");
+                }
+                if (growing != null && chunked) {
+                    out.append("Transfer-Encoding: chunked\r\n");
+                }
+                out.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+                byte[] headBytes = out.toString().getBytes(StandardCharsets.ISO_8859_1);
+                head = ByteBuffer.allocate(headBytes.length + (body != null ? body.length : 0));
+                head.put(headBytes);
+                if (body != null) {
+                    head.put(body);
+                }
+                head.flip();
+
+                state = State.WRITING;
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                // File vanished between planning and sending, or the client left
+                if (head == null && !closed && file == null && growingChannel == null) {
+                    growing = null;
+                    respondAndClose(AudioResponse.text(404, "File not found"));
+                } else {
+                    close();
+                }
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (state != State.WRITING) {
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+
+            if (head != null && head.hasRemaining()) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return;
+                }
+            }
+
+            if (memory != null) {
+                while (memory.hasRemaining()) {
+                    long allowed = lease.tryAcquire(memory.remaining());
+                    if (allowed <= 0) {
+                        throttle(memory.remaining());
+                        return;
+                    }
+                    int limit = memory.limit();
+                    memory.limit(memory.position() + (int) allowed);
+                    int written = channel.write(memory);
+                    memory.limit(limit);
+                    AudioMetrics.addBytesServed(written);
+                    lease.refund(allowed - written);
+                    if (written < allowed) {
+                        return; // Socket buffer full, wait for the next writable event
+                    }
+                }
+                memory = null;
+            }
+
+            if (file != null) {
+                while (filePosition < fileEnd) {
+                    long allowed = lease.tryAcquire(fileEnd - filePosition);
+                    if (allowed <= 0) {
+                        throttle(fileEnd - filePosition);
+                        return;
+                    }
+                    long sent = file.transferTo(filePosition, allowed, channel);
+                    lease.refund(allowed - Math.max(0, sent));
+                    AudioMetrics.addBytesServed(sent);
+                    if (sent <= 0) {
+                        if (filePosition >= file.size()) {
+                            // File was truncated underneath us
+                            close();
+                        }
+                        return; // Socket buffer full, wait for the next writable event
+                    }
+                    filePosition += sent;
+                }
+                file.close();
+                file = null;
+            }
+
+            if (growing != null && !pumpGrowing()) {
+                return;
+            }
+
+            finishResponse();
+        }
+
+        /**
+         * Sends whatever the download has written so far
+         * @return true once the whole file (and the final chunk) was sent
+         */
+        private boolean pumpGrowing() throws IOException {
+            while (true) {
+                if (chunk != null && chunk.hasRemaining()) {
+                    channel.write(chunk);
+                    if (chunk.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                }
+                if (lastChunkQueued) {
+                    return true;
+                }
+
+                // Read the state before the size so the last bytes are never missed
+                boolean done = growing.isComplete();
+                long available = growingChannel.size();
+
+                if (growingPosition < available) {
+                    long allowed = lease.tryAcquire(Math.min(GROWING_CHUNK_BYTES, available - growingPosition));
+                    if (allowed <= 0) {
+                        throttle(Math.min(GROWING_CHUNK_BYTES, available - growingPosition));
+                        return false;
+                    }
+                    int length = (int) allowed;
+                    byte[] prefix = chunked ? (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+                    int suffix = chunked ? 2 : 0;
+                    chunk = ByteBuffer.allocate(prefix.length + length + suffix);
+                    chunk.put(prefix);
+                    chunk.limit(prefix.length + length);
+                    while (chunk.hasRemaining()) {
+                        if (growingChannel.read(chunk, growingPosition + chunk.position() - prefix.length) < 0) {
+                            break;
+                        }
+                    }
+                    int read = chunk.position() - prefix.length;
+                    growingPosition += read;
+                    lease.refund(length - read);
+                    AudioMetrics.addBytesServed(read);
+                    chunk.limit(chunk.capacity());
+                    if (chunked) {
+                        chunk.put((byte) '\r').put((byte) '\n');
+                    }
+                    chunk.flip();
+                } else if (done) {
+                    chunk = chunked ? ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)) : ByteBuffer.allocate(0);
+                    lastChunkQueued = true;
+                } else if (growing.isFailed()) {
+                    // Abort without the final chunk so the client sees an incomplete response
+                    throw new IOException("Download failed while streaming " + growing.getFileId());
+                } else {
+                    // Nothing new yet, check again on the next selector round
+                    key.interestOps(0);
+                    growingWaiters.add(this);
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Pauses writing until the shaper allows more bytes
+         */
+        private void throttle(long wanted) {
+            key.interestOps(0);
+            throttled.put(this, System.nanoTime() + Math.max(1_000_000, lease.nanosUntilAvailable(wanted)));
+        }
+
+        private void releaseLease() {
+            if (lease != null) {
+                lease.close();
+                lease = null;
+            }
+        }
+
+        /**
+         * Ends the current response and either waits for the next request or closes
+         */
+        private void finishResponse() throws IOException {
+            releaseLease();
+            head = null;
+            chunk = null;
+            if (growingChannel != null) {
+                growingChannel.close();
+                growingChannel = null;
+            }
+            growing = null;
+
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            state = State.READING;
+            key.interestOps(SelectionKey.OP_READ);
+            if (in.position() > 0) {
+                // A pipelined request is already buffered
+                tryParseRequest();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            AudioMetrics.connectionClosed();
+            growingWaiters.remove(this);
+            throttled.remove(this);
+            releaseLease();
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                if (growingChannel != null) {
+                    growingChannel.close();
+                }
+                if (key != null) {
+                    key.cancel();
+                }
+                channel.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+
+    private static String reason(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 416 -> "Range Not Satisfiable";
+            case 431 -> "Request Header Fields Too Large";
+            case 503 -> "Service Unavailable";
+            default -> "Internal Server Error";
+        };
+    }
+}
@@ -0,0 +1,216 @@
+package com.psprofi.etchedytdlp.core;
+
+import com.psprofi.etchedytdlp.YouTube.CacheEvictor;
+import com.psprofi.etchedytdlp.YouTube.DownloadScheduler;
+import com.psprofi.etchedytdlp.YouTube.MetadataCache;
+import com.psprofi.etchedytdlp.YouTube.TranscodeProfile;
+import com.psprofi.etchedytdlp.YouTube.YtDlpDownloader;
+import com.psprofi.etchedytdlp.YouTube.YtDlpSource;
+import com.psprofi.etchedytdlp.YouTube.YtDlpWorkerPool;
+import net.minecraftforge.common.ForgeConfigSpec;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.event.config.ModConfigEvent;
+
+import java.util.List;
+
+/**
+ * Common config (config/etchedytdlp-common.toml)
+ * Values are pushed into the static settings of each component when the file is loaded or reloaded
+ *
+ * @author PsProfi
+ */
+@Mod.EventBusSubscriber(modid = EtchedYtDlpAddon.MOD_ID, bus = Mod.EventBusSubscriber.Bus.MOD)
+public class YtDlpConfig {
+
+    public static final ForgeConfigSpec SPEC;
+
+    // Local audio server
+    public static final ForgeConfigSpec.EnumValue<LocalAudioServer.Engine> SERVER_ENGINE;
+    public static final ForgeConfigSpec.EnumValue<AudioServerExecutor.Mode> SERVER_EXECUTOR;
+    public static final ForgeConfigSpec.IntValue SERVER_THREADS;
+    public static final ForgeConfigSpec.IntValue SERVER_QUEUE_CAPACITY;
+    public static final ForgeConfigSpec.IntValue SERVER_MAX_IN_FLIGHT;
+
+    // Downloads
+    public static final ForgeConfigSpec.EnumValue<YtDlpDownloader.AudioStorage> AUDIO_STORAGE;
+    public static final ForgeConfigSpec.BooleanValue PIPELINED_DOWNLOADS;
+    public static final ForgeConfigSpec.BooleanValue COMBINED_RESOLVE;
+    public static final ForgeConfigSpec.EnumValue<TranscodeProfile> TRANSCODE_PROFILE;
+    public static final ForgeConfigSpec.ConfigValue<List<? extends String>> HOST_PROFILES;
+    public static final ForgeConfigSpec.BooleanValue PROGRESSIVE_STREAMING;
+    public static final ForgeConfigSpec.IntValue STREAMING_START_KB;
+    public static final ForgeConfigSpec.IntValue STREAMING_START_TIMEOUT;
+    public static final ForgeConfigSpec.IntValue MAX_CONCURRENT_DOWNLOADS;
+    public static final ForgeConfigSpec.IntValue WARM_WORKERS;
+    public static final ForgeConfigSpec.IntValue WORKER_MAX_AGE_MINUTES;
+
+    // Download cache limits
+    public static final ForgeConfigSpec.IntValue CACHE_MAX_SIZE_MB;
+    public static final ForgeConfigSpec.IntValue CACHE_MAX_FILES;
+    public static final ForgeConfigSpec.EnumValue<CacheEvictor.Policy> CACHE_EVICTION_POLICY;
+
+    // Track metadata cache
+    public static final ForgeConfigSpec.IntValue METADATA_TTL_HOURS;
+    public static final ForgeConfigSpec.IntValue METADATA_NEGATIVE_TTL_MINUTES;
+
+    // Hot track memory cache
+    public static final ForgeConfigSpec.IntValue HOT_CACHE_BUDGET_MB;
+    public static final ForgeConfigSpec.IntValue HOT_CACHE_MAX_TRACK_MB;
+    public static final ForgeConfigSpec.IntValue HOT_CACHE_ADMIT_AFTER;
+
+    // Bandwidth shaping
+    public static final ForgeConfigSpec.IntValue BANDWIDTH_PER_CLIENT_KBPS;
+    public static final ForgeConfigSpec.IntValue BANDWIDTH_BURST_KB;
+    public static final ForgeConfigSpec.IntValue BANDWIDTH_GLOBAL_KBPS;
+
+    static {
+        ForgeConfigSpec.Builder builder = new ForgeConfigSpec.Builder();
+
+        builder.comment("Local HTTP server that streams cached audio to players").push("audio_server");
+        SERVER_ENGINE = builder
+                .comment("HTTP engine: JDK (com.sun.net.httpserver, one thread per streaming request)",
+                        "or NIO (single selector thread with zero-copy file transfers, for many concurrent players)")
+                .defineEnum("engine", LocalAudioServer.Engine.JDK);
+        SERVER_EXECUTOR = builder
+                .comment("How requests are executed by the JDK engine: DISPATCHER (one at a time), POOL (bounded thread pool)",
+                        "or VIRTUAL (virtual threads, needs Java 21, falls back to POOL)")
+                .defineEnum("executor", AudioServerExecutor.Mode.POOL);
+        SERVER_THREADS = builder
+                .comment("Worker threads in POOL mode")
+                .defineInRange("threads", 32, 1, 1024);
+        SERVER_QUEUE_CAPACITY = builder
+                .comment("Requests that may wait for a worker in POOL mode before getting 503",
+                        "Etched does not retry, a 503 fails playback: keep this above the number of players that may start a record at once")
+                .defineInRange("queueCapacity", 128, 1, 65536);
+        SERVER_MAX_IN_FLIGHT = builder
+                .comment("Maximum number of requests streaming at the same time, further requests wait up to 30 seconds for a slot")
+                .defineInRange("maxInFlightRequests", 96, 1, 65536);
+
+        builder.comment("Off-heap memory cache for the most requested tracks").push("hot_cache");
+        HOT_CACHE_BUDGET_MB = builder
+                .comment("Memory budget in MB (0 disables the cache)")
+                .defineInRange("budgetMb", 256, 0, 16384);
+        HOT_CACHE_MAX_TRACK_MB = builder
+                .comment("Largest track that may be kept in memory, in MB")
+                .defineInRange("maxTrackMb", 64, 1, 2047);
+        HOT_CACHE_ADMIT_AFTER = builder
+                .comment("Number of requests a track needs before it is kept in memory")
+                .defineInRange("admitAfterRequests", 3, 1, 1000);
+        builder.pop();
+
+        builder.comment("Rate limits so a few fast clients cannot saturate the server uplink").push("bandwidth");
+        BANDWIDTH_PER_CLIENT_KBPS = builder
+                .comment("Maximum rate of a single transfer in KB/s (0 = unlimited).",
+                        "A 320 kbps track plays at 40 KB/s, so around 96 leaves headroom for seeking")
+                .defineInRange("perClientKBps", 0, 0, 1048576);
+        BANDWIDTH_BURST_KB = builder
+                .comment("KB each transfer may send at full speed before shaping starts, so playback begins quickly")
+                .defineInRange("burstKb", 1024, 0, 1048576);
+        BANDWIDTH_GLOBAL_KBPS = builder
+                .comment("Maximum rate of all transfers together in KB/s, shared fairly between players (0 = unlimited)")
+                .defineInRange("globalKBps", 0, 0, 10485760);
+        builder.pop();
+
+        builder.pop();
+
+        builder.comment("Downloading and transcoding with yt-dlp/ffmpeg").push("downloads");
+        AUDIO_STORAGE = builder
+                .comment("How downloaded audio is cached: TRANSCODE (always re-encode to MP3 using transcodeProfile)",
+                        "or PASSTHROUGH (keep MP3/Vorbis sources as they are, re-encode only codecs Etched cannot play).",
+                        "Progressive streaming always encodes MP3")
+                .defineEnum("audioStorage", YtDlpDownloader.AudioStorage.PASSTHROUGH);
+        PIPELINED_DOWNLOADS = builder
+                .comment("Feed yt-dlp's output straight into ffmpeg instead of downloading to a file first,",
+                        "so each track is written to disk once and transcoding overlaps the download")
+                .define("pipelinedDownloads", true);
+        COMBINED_RESOLVE = builder
+                .comment("Download a track's audio and thumbnail while its record is burned, in the same yt-dlp run",
+                        "that reads the title and artist, so playing it later starts from the cache")
+                .define("combinedResolve", true);
+        TRANSCODE_PROFILE = builder
+                .comment("MP3 settings when a track is transcoded: HIFI (320k stereo), STANDARD (128k stereo)",
+                        "or LOWBW (64k mono 32 kHz, always transcoded). Jukebox audio is positional, so lower profiles",
+                        "save bandwidth and disk without much audible difference. Tracks are cached per profile")
+                .defineEnum("transcodeProfile", TranscodeProfile.HIFI);
+        HOST_PROFILES = builder
+                .comment("Per-host overrides of transcodeProfile, e.g. [\"soundcloud.com=lowbw\", \"youtube.com=standard\"].",
+                        "A host also matches its subdomains. Links to YouTube and SoundCloud tracks use the rule of the site",
+                        "(youtube.com, soundcloud.com) whatever their form, e.g. youtu.be and music.youtube.com links")
+                .defineList("hostProfiles", List.of(), TranscodeProfile::isValidRule);
+        PROGRESSIVE_STREAMING = builder
+                .comment("Start playback while a track is still downloading instead of waiting for the whole file")
+                .define("progressiveStreaming", false);
+        STREAMING_START_KB = builder
+                .comment("How much encoded audio (KB) must exist before players are given the stream")
+                .defineInRange("streamingStartKb", 128, 16, 16384);
+        STREAMING_START_TIMEOUT = builder
+                .comment("Seconds to wait for the first audio before the download is abandoned")
+                .defineInRange("streamingStartTimeoutSeconds", 60, 5, 600);
+        MAX_CONCURRENT_DOWNLOADS = builder
+                .comment("Downloads (yt-dlp + ffmpeg) running at the same time, the rest wait in a queue")
+                .defineInRange("maxConcurrentDownloads", 3, 1, 64);
+        WARM_WORKERS = builder
+                .comment("yt-dlp processes started ahead of time for metadata lookups, so a burn does not wait",
+                        "for yt-dlp to start up (each serves one lookup and is replaced, 0 disables)")
+                .defineInRange("warmWorkers", 2, 0, 16);
+        WORKER_MAX_AGE_MINUTES = builder
+                .comment("Minutes after which an unused yt-dlp worker is replaced by a fresh one")
+                .defineInRange("workerMaxAgeMinutes", 10, 1, 1440);
+        builder.pop();
+
+        builder.comment("Download cache on disk (ytdlp_tools/ytdlp_cache)").push("cache");
+        CACHE_MAX_SIZE_MB = builder
+                .comment("Maximum cache size in MB, tracks are evicted in the background when it is exceeded (0 = unlimited)",
+                        "Off by default: setting it on a server with a larger cache deletes tracks until the cache fits")
+                .defineInRange("maxSizeMb", 0, 0, Integer.MAX_VALUE);
+        CACHE_MAX_FILES = builder
+                .comment("Maximum number of cached files, audio and thumbnails (0 = unlimited)")
+                .defineInRange("maxFiles", 0, 0, Integer.MAX_VALUE);
+        CACHE_EVICTION_POLICY = builder
+                .comment("Which tracks are evicted first: LRU (least recently played), LFU (least often played)",
+                        "or W_TINYLFU (least often played, with new tracks protected and old play counts fading)")
+                .defineEnum("evictionPolicy", CacheEvictor.Policy.W_TINYLFU);
+        builder.pop();
+
+        builder.comment("Cached track metadata (title, artist, thumbnail) so known tracks do not ask yt-dlp again").push("metadata");
+        METADATA_TTL_HOURS = builder
+                .comment("Hours metadata is reused before it is fetched again (0 disables the cache)")
+                .defineInRange("ttlHours", 168, 0, 87600);
+        METADATA_NEGATIVE_TTL_MINUTES = builder
+                .comment("Minutes a link yt-dlp could not resolve is not tried again (0 = always retry)")
+                .defineInRange("negativeTtlMinutes", 5, 0, 1440);
+        builder.pop();
+
+        SPEC = builder.build();
+    }
+
+    @SubscribeEvent
+    public static void onConfigLoad(ModConfigEvent event) {
+        if (event.getConfig().getSpec() != SPEC) {
+            return;
+        }
+
+        LocalAudioServer.configureEngine(SERVER_ENGINE.get());
+        LocalAudioServer.configureExecutor(SERVER_EXECUTOR.get(), SERVER_THREADS.get(),
+                SERVER_QUEUE_CAPACITY.get(), SERVER_MAX_IN_FLIGHT.get());
+        LocalAudioServer.configureHotCache(HOT_CACHE_BUDGET_MB.get() * 1024L * 1024L,
+                HOT_CACHE_MAX_TRACK_MB.get() * 1024L * 1024L, HOT_CACHE_ADMIT_AFTER.get());
+        LocalAudioServer.configureBandwidth(BANDWIDTH_PER_CLIENT_KBPS.get() * 1024L, BANDWIDTH_BURST_KB.get() * 1024L,
+                BANDWIDTH_GLOBAL_KBPS.get() * 1024L);
+        YtDlpDownloader.configureAudioStorage(AUDIO_STORAGE.get());
+        YtDlpDownloader.configurePipelinedDownloads(PIPELINED_DOWNLOADS.get());
+        YtDlpSource.configureCombinedResolve(COMBINED_RESOLVE.get());
+        TranscodeProfile.configure(TRANSCODE_PROFILE.get(), HOST_PROFILES.get());
+        YtDlpSource.configureStreaming(PROGRESSIVE_STREAMING.get(), STREAMING_START_KB.get() * 1024L,
+                STREAMING_START_TIMEOUT.get());
+        DownloadScheduler.configure(MAX_CONCURRENT_DOWNLOADS.get());
+        YtDlpWorkerPool.configure(WARM_WORKERS.get(), WORKER_MAX_AGE_MINUTES.get() * 60L * 1000);
+        CacheEvictor.configure(CACHE_MAX_SIZE_MB.get() * 1024L * 1024L, CACHE_MAX_FILES.get(),
+                CACHE_EVICTION_POLICY.get());
+        MetadataCache.configure(METADATA_TTL_HOURS.get() * 60L * 60 * 1000,
+                METADATA_NEGATIVE_TTL_MINUTES.get() * 60L * 1000);
+
+        System.out.println("[Etched YT-DLP] Config loaded");
+    }
+}
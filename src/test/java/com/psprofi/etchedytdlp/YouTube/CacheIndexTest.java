@@ -0,0 +1,108 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests how the cache index is read back from its log and built from the cache directory
+ * @author PsProfi
+ */
+class CacheIndexTest {
+
+    private static final String FILE_A = "ab/cd/abcd1234.mp3";
+    private static final String FILE_B = "ef/01/ef012345.ogg";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysPutsAccessesAndDeletes() throws IOException {
+        Path log = writeLog(
+                put(FILE_A, 1000) + "\n",
+                put(FILE_B, 2000) + "\n",
+                "A\t" + FILE_A + "\t500\t7\n",
+                "D\t" + FILE_B + "\n");
+
+        CacheIndex index = new CacheIndex(log, dir.resolve("cache"));
+
+        CacheIndex.Entry entry = index.get(FILE_A);
+        assertNotNull(entry);
+        assertEquals(500, entry.lastAccess());
+        assertEquals(7, entry.hits());
+        assertNull(index.get(FILE_B));
+        assertEquals(1000, index.getTotalBytes());
+    }
+
+    @Test
+    void skipsTornLines() throws IOException {
+        Path log = writeLog(
+                put(FILE_A, 1000) + "\n",
+                "A\t" + FILE_A + "\tnot-a-number\n",
+                "D\n",
+                put(FILE_B, 2000).substring(0, 30));
+
+        CacheIndex index = new CacheIndex(log, dir.resolve("cache"));
+
+        assertEquals(1, index.size());
+        assertEquals(1000, index.getTotalBytes());
+        assertNotNull(index.get(FILE_A));
+    }
+
+    @Test
+    void appendAfterTornLastLineSurvivesReload() throws IOException {
+        // A crash in the middle of a write leaves the last line without its line break
+        Path log = writeLog(put(FILE_A, 1000) + "\n", put(FILE_B, 2000).substring(0, 30));
+
+        CacheIndex index = new CacheIndex(log, dir.resolve("cache"));
+        index.put(entry(FILE_B, 2000));
+
+        CacheIndex reloaded = new CacheIndex(log, dir.resolve("cache"));
+        assertNotNull(reloaded.get(FILE_A));
+        assertNotNull(reloaded.get(FILE_B), "entry written after the torn line");
+        assertEquals(3000, reloaded.getTotalBytes());
+    }
+
+    @Test
+    void rebuildIndexesOnlyFinishedFiles() throws IOException {
+        Path cache = dir.resolve("cache");
+        Files.createDirectories(cache.resolve("ab/cd"));
+        Files.write(cache.resolve(FILE_A), new byte[100]);
+        Files.write(cache.resolve("ab/cd/abcd1234.webm.part"), new byte[100]);
+        Files.createDirectories(cache.resolve("staging/abcd1234"));
+        Files.write(cache.resolve("staging/abcd1234/abcd1234.mp3"), new byte[100]);
+
+        CacheIndex index = new CacheIndex(dir.resolve("index.log"), cache);
+
+        assertEquals(1, index.size());
+        assertEquals("abcd1234", index.get(FILE_A).key());
+        assertEquals(100, index.getTotalBytes());
+    }
+
+    private Path writeLog(String... lines) throws IOException {
+        Path log = dir.resolve("index.log");
+        Files.writeString(log, String.join("", lines), StandardCharsets.UTF_8);
+        return log;
+    }
+
+    private static CacheIndex.Entry entry(String file, long size) {
+        String name = file.substring(file.lastIndexOf('/') + 1);
+        return new CacheIndex.Entry(file, name.substring(0, name.indexOf('.')), "https://example.com/" + name, size,
+                -1, name.substring(name.indexOf('.') + 1), 100, 100, "", 1);
+    }
+
+    private static String put(String file, long size) {
+        CacheIndex.Entry entry = entry(file, size);
+        return "P\t" + entry.file() + "\t" + entry.key() + "\t" + entry.url() + "\t" + entry.size() + "\t"
+                + entry.durationSeconds() + "\t" + entry.format() + "\t" + entry.createdAt() + "\t"
+                + entry.lastAccess() + "\t" + entry.checksum() + "\t" + entry.hits();
+    }
+}
@@ -0,0 +1,55 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests parsing of the progress lines yt-dlp prints with our --progress-template
+ * @author PsProfi
+ */
+class DownloadProgressTest {
+
+    @Test
+    void parsesAllFields() {
+        DownloadProgress.Sample sample = DownloadProgress.parse(DownloadProgress.PREFIX + " 1024 4096 NA 512.5 6");
+
+        assertEquals(1024, sample.downloadedBytes());
+        assertEquals(4096, sample.totalBytes());
+        assertEquals(512.5, sample.bytesPerSecond());
+        assertEquals(6, sample.etaSeconds());
+    }
+
+    @Test
+    void usesEstimateWhenTotalIsUnknown() {
+        DownloadProgress.Sample sample = DownloadProgress.parse(DownloadProgress.PREFIX + " 1024 NA 8192.0 NA NA");
+
+        assertEquals(8192, sample.totalBytes());
+        assertEquals(-1.0, sample.bytesPerSecond());
+        assertEquals(-1, sample.etaSeconds());
+    }
+
+    @Test
+    void unknownSizeOfALiveStream() {
+        DownloadProgress.Sample sample = DownloadProgress.parse(DownloadProgress.PREFIX + " NA NA NA NA NA");
+
+        assertEquals(0, sample.downloadedBytes());
+        assertEquals(-1, sample.totalBytes());
+    }
+
+    @Test
+    void findsThePrefixAfterOtherOutput() {
+        DownloadProgress.Sample sample = DownloadProgress.parse("\r" + DownloadProgress.PREFIX + "   10   20 NA 1.0 1  ");
+
+        assertEquals(10, sample.downloadedBytes());
+        assertEquals(20, sample.totalBytes());
+    }
+
+    @Test
+    void ignoresOtherLines() {
+        assertNull(DownloadProgress.parse("[download] Destination: abcd.webm"));
+        assertNull(DownloadProgress.parse(DownloadProgress.PREFIX + " 1024 4096"));
+        assertNull(DownloadProgress.parse(""));
+    }
+}
@@ -0,0 +1,62 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests which interrupted downloads are kept and how they are picked up again
+ * @author PsProfi
+ */
+class DownloadResumerTest {
+
+    private static final String URL = "https://www.youtube.com/watch?v=dQw4w9WgXcQ";
+    private static final String KEY = "0123456789abcdef";
+
+    @TempDir
+    Path staging;
+
+    @AfterEach
+    void leaveSuspendedState() {
+        DownloadResumer.clearSuspended();
+    }
+
+    @Test
+    void interruptedPipelinedJobIsResumedAsFileDownload() throws IOException {
+        // What a pipelined download leaves behind when the server stops: the manifest and piped output
+        Path jobDir = Files.createDirectories(staging.resolve(KEY));
+        DownloadResumer.writeManifest(jobDir, URL, KEY);
+        Files.write(jobDir.resolve(KEY + ".pipe.mp3"), new byte[4096]);
+
+        DownloadResumer.suspend();
+        DownloadResumer.finishJob(jobDir, false, true);
+
+        assertTrue(Files.isDirectory(jobDir), "job of a shutdown is kept");
+        assertTrue(DownloadResumer.isResumable(jobDir), "job is picked up at the next start");
+        assertFalse(DownloadResumer.hasPartialData(jobDir), "piped output cannot be continued");
+        assertTrue(DownloadResumer.needsFileDownload(jobDir), "retry goes through the file download");
+    }
+
+    @Test
+    void newJobMayUsePipeline() throws IOException {
+        assertFalse(DownloadResumer.needsFileDownload(staging.resolve(KEY)));
+        Path emptyDir = Files.createDirectories(staging.resolve(KEY + "-empty"));
+        assertFalse(DownloadResumer.needsFileDownload(emptyDir));
+    }
+
+    @Test
+    void partialFileDownloadIsContinued() throws IOException {
+        Path jobDir = Files.createDirectories(staging.resolve(KEY));
+        Files.write(jobDir.resolve(KEY + ".webm.part"), new byte[4096]);
+
+        assertTrue(DownloadResumer.hasPartialData(jobDir));
+        assertTrue(DownloadResumer.needsFileDownload(jobDir));
+    }
+}
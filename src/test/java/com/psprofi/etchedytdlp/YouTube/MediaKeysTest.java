@@ -0,0 +1,79 @@
+package com.psprofi.etchedytdlp.YouTube;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests the media IDs derived from URLs, which decide the cache key of every download
+ * @author PsProfi
+ */
+class MediaKeysTest {
+
+    private static final String VIDEO = "youtube:dQw4w9WgXcQ";
+
+    @Test
+    void shortLinkMatchesWatchLink() {
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://youtu.be/dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://youtu.be/dQw4w9WgXcQ?t=42"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/watch?v=dQw4w9WgXcQ"));
+    }
+
+    @Test
+    void videoParameterIsFoundAfterOthers() {
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/watch?feature=share&v=dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=10s"));
+    }
+
+    @Test
+    void shortsAndEmbedLinks() {
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/shorts/dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/embed/dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube-nocookie.com/embed/dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/live/dQw4w9WgXcQ/"));
+    }
+
+    @Test
+    void musicAndMobileHosts() {
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://music.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://m.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals(VIDEO, MediaKeys.canonicalize("HTTPS://WWW.YOUTUBE.COM/watch?v=dQw4w9WgXcQ"));
+    }
+
+    @Test
+    void playlistParametersAreIgnoredForATrack() {
+        assertEquals(VIDEO, MediaKeys.canonicalize("https://www.youtube.com/watch?v=dQw4w9WgXcQ&list=PLx0sYbCqOb8TBPRdmBHs5Iftvv9TPboYG&index=3"));
+        assertNull(MediaKeys.canonicalize("https://www.youtube.com/playlist?list=PLx0sYbCqOb8TBPRdmBHs5Iftvv9TPboYG"));
+    }
+
+    @Test
+    void invalidVideoIdsAreNotCanonical() {
+        assertNull(MediaKeys.canonicalize("https://www.youtube.com/watch?v=short"));
+        assertNull(MediaKeys.canonicalize("https://www.youtube.com/watch"));
+        assertNull(MediaKeys.canonicalize("https://www.youtube.com/@channel"));
+        assertNull(MediaKeys.canonicalize("not a url"));
+    }
+
+    @Test
+    void soundcloudTracksButNotSets() {
+        assertEquals("soundcloud:artist/track-name", MediaKeys.canonicalize("https://soundcloud.com/Artist/Track-Name"));
+        assertEquals("soundcloud:artist/track-name", MediaKeys.canonicalize("https://m.soundcloud.com/artist/track-name?in=x"));
+        assertNull(MediaKeys.canonicalize("https://soundcloud.com/artist/sets/album"));
+        assertNull(MediaKeys.canonicalize("https://soundcloud.com/artist/sets"));
+        assertNull(MediaKeys.canonicalize("https://soundcloud.com/artist"));
+    }
+
+    @Test
+    void unknownHostsAreLeftToYtDlp() {
+        assertNull(MediaKeys.canonicalize("https://vimeo.com/76979871"));
+        assertNull(MediaKeys.getSiteHost("https://vimeo.com/76979871"));
+    }
+
+    @Test
+    void everyLinkFormHasTheSameSite() {
+        assertEquals("youtube.com", MediaKeys.getSiteHost("https://youtu.be/dQw4w9WgXcQ"));
+        assertEquals("youtube.com", MediaKeys.getSiteHost("https://music.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals("soundcloud.com", MediaKeys.getSiteHost("https://soundcloud.com/artist/track-name"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.psprofi.etchedytdlp.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests how Range and If-Range requests are answered
+ * @author PsProfi
+ */
+class AudioResponseTest {
+
+    private static final long SIZE = 1000;
+    private static final String ETAG = "\"abc123\"";
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    @Test
+    void closedRange() {
+        AudioResponse response = AudioResponse.planRange("bytes=0-99", SIZE);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(0, response.getStart());
+        assertEquals(100, response.getLength());
+        assertEquals("bytes 0-99/1000", response.getHeaders().get("Content-Range"));
+    }
+
+    @Test
+    void openRangeAndSuffixRange() {
+        AudioResponse open = AudioResponse.planRange("bytes=900-", SIZE);
+        assertEquals(206, open.getStatus());
+        assertEquals(900, open.getStart());
+        assertEquals(100, open.getLength());
+
+        AudioResponse suffix = AudioResponse.planRange("bytes=-300", SIZE);
+        assertEquals(700, suffix.getStart());
+        assertEquals(300, suffix.getLength());
+        assertEquals("bytes 700-999/1000", suffix.getHeaders().get("Content-Range"));
+    }
+
+    @Test
+    void endPastTheFileIsClamped() {
+        AudioResponse response = AudioResponse.planRange("bytes=500-5000", SIZE);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(500, response.getLength());
+    }
+
+    @Test
+    void unsatisfiableRanges() {
+        for (String range : new String[]{"bytes=1000-", "bytes=600-100", "bytes=-0"}) {
+            AudioResponse response = AudioResponse.planRange(range, SIZE);
+            assertEquals(416, response.getStatus(), range);
+            assertEquals("bytes */1000", response.getHeaders().get("Content-Range"), range);
+        }
+    }
+
+    @Test
+    void malformedRangeGetsTheWholeFile() {
+        for (String range : new String[]{"bytes=abc", "bytes=0-1,5-6", "bytes="}) {
+            AudioResponse response = AudioResponse.planRange(range, SIZE);
+            assertEquals(200, response.getStatus(), range);
+            assertEquals(SIZE, response.getLength(), range);
+        }
+    }
+
+    @Test
+    void ifRangeWithEntityTag() {
+        assertTrue(AudioResponse.isRangeValid(Map.<String, String>of()::get, ETAG, LAST_MODIFIED));
+        assertTrue(AudioResponse.isRangeValid(Map.of("If-Range", ETAG)::get, ETAG, LAST_MODIFIED));
+        assertFalse(AudioResponse.isRangeValid(Map.of("If-Range", "\"other\"")::get, ETAG, LAST_MODIFIED));
+        // If-Range needs a strong comparison
+        assertFalse(AudioResponse.isRangeValid(Map.of("If-Range", "W/" + ETAG)::get, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    void ifRangeWithDate() {
+        assertTrue(AudioResponse.isRangeValid(Map.of("If-Range", httpDate(LAST_MODIFIED))::get, ETAG, LAST_MODIFIED));
+        assertFalse(AudioResponse.isRangeValid(Map.of("If-Range", httpDate(LAST_MODIFIED - 60_000))::get, ETAG, LAST_MODIFIED));
+        assertFalse(AudioResponse.isRangeValid(Map.of("If-Range", "not a date")::get, ETAG, LAST_MODIFIED));
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+}